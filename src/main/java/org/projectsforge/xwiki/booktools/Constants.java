@@ -45,6 +45,12 @@ public abstract class Constants {
   /** The Constant CONTEXT_BIBLIOGRAPHY_ERROR. */
   public static final String CONTEXT_BIBLIOGRAPHY_ERROR = "bibliography_error";
 
+  /**
+   * The Constant CONTEXT_ENTRY_RENDERED (set while saving entries whose
+   * rendering is already up to date).
+   */
+  public static final String CONTEXT_ENTRY_RENDERED = "booktools-entry-rendered";
+
   /** The Constant ENTRIES_SPACE_NAME_AS_STRING. */
   public static final String ENTRIES_SPACE_NAME_AS_STRING = EXTENSION_SPACE_NAME + "." + "Data" + "." + "Entries";
 
@@ -5,9 +5,12 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
 
 import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.booktools.csl.RenderedBibliography;
+import org.projectsforge.xwiki.booktools.mapping.IndexedPage;
 import org.projectsforge.xwiki.booktools.mapping.Person;
 import org.projectsforge.xwiki.booktools.service.BookToolsService;
 import org.slf4j.Logger;
@@ -16,6 +19,7 @@ import org.xwiki.model.internal.reference.DefaultSymbolScheme;
 import org.xwiki.model.internal.reference.LocalStringEntityReferenceSerializer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.undercouch.citeproc.csl.CSLDate;
@@ -155,7 +159,9 @@ public class Utils {
   }
 
   /**
-   * Deserialize the list of CSLItemData.
+   * Deserialize the list of CSLItemData stored one after the other (the former
+   * format of the index entries, see
+   * {@link org.projectsforge.xwiki.booktools.mapping.IndexEntries}).
    *
    * @param value
    *          the value
@@ -179,6 +185,72 @@ public class Utils {
     return entries;
   }
 
+  /**
+   * Deserialize the entry document references by key.
+   *
+   * @param service
+   *          the service
+   * @param value
+   *          the value
+   * @return the map
+   */
+  public static Map<String, String> deserializeEntryReferences(BookToolsService service, String value) {
+    if (StringUtils.isNotBlank(value)) {
+      try {
+        return new ObjectMapper().readValue(value, new TypeReference<Map<String, String>>() {
+        });
+      } catch (IOException ex) {
+        service.addError(Error.JSON_DECODING, value);
+        logger.warn("Failed decoding entry references", ex);
+      }
+    }
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Deserialize the citation numbers by key.
+   *
+   * @param service
+   *          the service
+   * @param value
+   *          the value
+   * @return the map
+   */
+  public static Map<String, Integer> deserializeNumbering(BookToolsService service, String value) {
+    if (StringUtils.isNotBlank(value)) {
+      try {
+        return new ObjectMapper().readValue(value, new TypeReference<Map<String, Integer>>() {
+        });
+      } catch (IOException ex) {
+        service.addError(Error.JSON_DECODING, value);
+        logger.warn("Failed decoding numbering", ex);
+      }
+    }
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Deserialize the indexed pages.
+   *
+   * @param service
+   *          the service
+   * @param value
+   *          the value
+   * @return the list
+   */
+  public static List<IndexedPage> deserializeIndexedPages(BookToolsService service, String value) {
+    if (StringUtils.isNotBlank(value)) {
+      try {
+        return new ObjectMapper().readValue(value, new TypeReference<List<IndexedPage>>() {
+        });
+      } catch (IOException ex) {
+        service.addError(Error.JSON_DECODING, value);
+        logger.warn("Failed decoding indexed pages", ex);
+      }
+    }
+    return Collections.emptyList();
+  }
+
   /**
    * Deserialize keys.
    *
@@ -201,6 +273,29 @@ public class Utils {
     return Collections.emptyList();
   }
 
+  /**
+   * Deserialize the rendered bibliographies by locale.
+   *
+   * @param service
+   *          the service
+   * @param value
+   *          the value
+   * @return the map
+   */
+  public static Map<String, RenderedBibliography> deserializeRenderedBibliographies(BookToolsService service,
+      String value) {
+    if (StringUtils.isNotBlank(value)) {
+      try {
+        return new ObjectMapper().readValue(value, new TypeReference<Map<String, RenderedBibliography>>() {
+        });
+      } catch (IOException ex) {
+        service.addError(Error.JSON_DECODING, value);
+        logger.warn("Failed decoding rendered bibliographies", ex);
+      }
+    }
+    return Collections.emptyMap();
+  }
+
   /**
    * Serialize CSL item data.
    *
@@ -224,21 +319,66 @@ public class Utils {
   }
 
   /**
-   * Serialized CSL item datas.
+   * Serialize the entry document references by key.
    *
-   * @param data
-   *          the data
+   * @param service
+   *          the service
+   * @param references
+   *          the references
+   * @return the string
+   */
+  public static String serializeEntryReferences(BookToolsService service, Map<String, String> references) {
+    try {
+      if (!references.isEmpty()) {
+        return new ObjectMapper().writeValueAsString(references);
+      }
+    } catch (JsonProcessingException ex) {
+      service.addError(Error.JSON_ENCODING, references.keySet());
+      logger.debug("Can not serialize entry references", ex);
+    }
+    return "";
+  }
+
+  /**
+   * Serialize the citation numbers by key.
+   *
+   * @param service
+   *          the service
+   * @param numbering
+   *          the numbering
+   * @return the string
+   */
+  public static String serializeNumbering(BookToolsService service, Map<String, Integer> numbering) {
+    try {
+      if (!numbering.isEmpty()) {
+        return new ObjectMapper().writeValueAsString(numbering);
+      }
+    } catch (JsonProcessingException ex) {
+      service.addError(Error.JSON_ENCODING, numbering.keySet());
+      logger.debug("Can not serialize numbering", ex);
+    }
+    return "";
+  }
+
+  /**
+   * Serialize the indexed pages.
+   *
+   * @param service
+   *          the service
+   * @param pages
+   *          the pages
    * @return the string
    */
-  public static String serializedCSLItemDatas(List<CSLItemData> data) {
-    StringBuilder builder = new StringBuilder();
-    if (data != null) {
-      StringJsonBuilderFactory factory = new StringJsonBuilderFactory();
-      for (CSLItemData item : data) {
-        builder.append(item.toJson(factory.createJsonBuilder()));
+  public static String serializeIndexedPages(BookToolsService service, List<IndexedPage> pages) {
+    try {
+      if (!pages.isEmpty()) {
+        return new ObjectMapper().writeValueAsString(pages);
       }
+    } catch (JsonProcessingException ex) {
+      service.addError(Error.JSON_ENCODING, pages.size());
+      logger.debug("Can not serialize indexed pages", ex);
     }
-    return builder.toString();
+    return "";
   }
 
   /**
@@ -262,6 +402,28 @@ public class Utils {
     return "";
   }
 
+  /**
+   * Serialize the rendered bibliographies by locale.
+   *
+   * @param service
+   *          the service
+   * @param rendered
+   *          the rendered bibliographies
+   * @return the string
+   */
+  public static String serializeRenderedBibliographies(BookToolsService service,
+      Map<String, RenderedBibliography> rendered) {
+    try {
+      if (!rendered.isEmpty()) {
+        return new ObjectMapper().writeValueAsString(rendered);
+      }
+    } catch (JsonProcessingException ex) {
+      service.addError(Error.JSON_ENCODING, rendered.keySet());
+      logger.debug("Can not serialize rendered bibliographies", ex);
+    }
+    return "";
+  }
+
   /**
    * Instantiates a new utils.
    */
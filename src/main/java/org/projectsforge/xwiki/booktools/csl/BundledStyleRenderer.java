@@ -0,0 +1,679 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.undercouch.citeproc.csl.CSLDate;
+import de.undercouch.citeproc.csl.CSLItemData;
+import de.undercouch.citeproc.csl.CSLName;
+import de.undercouch.citeproc.csl.CSLType;
+
+/**
+ * A Java implementation of the bundled styles (/csl/entryStyle.csl and
+ * /csl/style.csl) for the en-US locale. It produces the same text output as
+ * citeproc without starting a JavaScript engine. Only entries made of plain
+ * values are handled : when a value could be transformed by citeproc (quotes,
+ * markup, particles, date ranges...), the renderer gives up and the caller
+ * must fall back to citeproc.
+ */
+public class BundledStyleRenderer {
+
+  /**
+   * The number of renderings compared with the output of citeproc before the
+   * renderer is trusted.
+   */
+  public static final int CHECKS = 20;
+
+  /** The kind of bundled style. */
+  private enum Kind {
+
+    /** The entry style. */
+    ENTRY,
+
+    /** The main style. */
+    MAIN
+  }
+
+  /** The types rendered with the edition macro. */
+  private static final Set<CSLType> BOOK_TYPES = EnumSet.of(CSLType.BOOK, CSLType.MANUSCRIPT, CSLType.REPORT,
+      CSLType.THESIS);
+
+  /** The Constant ENTRY_TARGET_MARK (as written in the styles). */
+  private static final String ENTRY_TARGET_MARK = "BIBLIOGRAPHY_ENTRY_TARGET_MARK";
+
+  /** The Constant CITE_TARGET_MARK (as written in the styles). */
+  private static final String CITE_TARGET_MARK = "BIBLIOGRAPHY_CITE_TARGET_MARK";
+
+  /** The family name pattern (no particle, no suffix). */
+  private static final Pattern FAMILY = Pattern.compile("\\p{Lu}\\p{Ll}*(?:-\\p{Lu}\\p{Ll}*)*");
+
+  /** The given name pattern (words or initials separated by a space or a hyphen). */
+  private static final Pattern GIVEN = Pattern
+      .compile("\\p{Lu}(?:\\p{Ll}*|\\.)(?:(?:-|(?<=\\.) ?|(?<!\\.) )\\p{Lu}(?:\\p{Ll}*|\\.))*");
+
+  /** The given name part pattern. */
+  private static final Pattern GIVEN_PART = Pattern.compile("(-?)\\s*(\\p{Lu})");
+
+  /** The integer pattern. */
+  private static final Pattern INTEGER = Pattern.compile("[1-9][0-9]{0,3}");
+
+  /**
+   * The leading article removed from the sort keys by citeproc (only in lower
+   * case, as citeproc matches the original key).
+   */
+  private static final Pattern LEADING_ARTICLE = Pattern.compile("^(?:a|an|the)\\s+");
+
+  /** The long ordinals of the en-US locale. */
+  private static final String[] LONG_ORDINALS = { "first", "second", "third", "fourth", "fifth", "sixth", "seventh",
+      "eighth", "ninth", "tenth" };
+
+  /** The month names of the en-US locale. */
+  private static final String[] MONTHS = { "January", "February", "March", "April", "May", "June", "July", "August",
+      "September", "October", "November", "December" };
+
+  /** The page pattern (a page or a range of pages). */
+  private static final Pattern PAGE = Pattern.compile("([1-9][0-9]{0,5})(?:-([1-9][0-9]{0,5}))?");
+
+  /** The periods removed by strip-periods in citeproc. */
+  private static final Pattern STRIPPED_PERIOD = Pattern.compile("\\.([^a-z]|$)");
+
+  /**
+   * The plain text pattern : letters, digits and punctuation that citeproc
+   * outputs unchanged, apostrophes being allowed inside words only.
+   */
+  private static final Pattern TEXT = Pattern
+      .compile("[\\p{L}\\p{N}](?:[\\p{L}\\p{N},.:;()/&%+#=@]| (?! )|-(?!-)|(?<=\\p{L})'(?=\\p{L}))*(?<=[\\p{L}\\p{N}])");
+
+  /** The URL pattern. */
+  private static final Pattern URL = Pattern.compile("https?://[A-Za-z0-9._~:/?#@&=%+-]*[A-Za-z0-9/]");
+
+  /**
+   * Checks if a date is a single date with known parts.
+   *
+   * @param date
+   *          the date
+   * @return true, if is supported
+   */
+  private static boolean isSupported(CSLDate date) {
+    if (date == null) {
+      return true;
+    }
+    if (date.getSeason() != null || date.getCirca() != null || date.getLiteral() != null || date.getRaw() != null
+        || date.getDateParts() == null || date.getDateParts().length != 1) {
+      return false;
+    }
+    int[] parts = date.getDateParts()[0];
+    return parts != null && parts.length >= 1 && parts.length <= 3 && parts[0] >= 1000 && parts[0] <= 9999
+        && (parts.length < 2 || parts[1] >= 1 && parts[1] <= 12) && (parts.length < 3 || parts[2] >= 1 && parts[2] <= 31);
+  }
+
+  /**
+   * Checks if the names are simple personal names.
+   *
+   * @param names
+   *          the names
+   * @return true, if is supported
+   */
+  private static boolean isSupported(CSLName[] names) {
+    if (names == null) {
+      return true;
+    }
+    for (CSLName name : names) {
+      if (name == null || name.getFamily() == null || !FAMILY.matcher(name.getFamily()).matches()
+          || name.getGiven() != null && !GIVEN.matcher(name.getGiven()).matches() || name.getDroppingParticle() != null
+          || name.getNonDroppingParticle() != null || name.getSuffix() != null || name.getLiteral() != null
+          || name.getCommaPrefix() != null || name.getCommaSuffix() != null || name.getStaticOrdering() != null
+          || name.getParseNames() != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks if a value matches a pattern.
+   *
+   * @param pattern
+   *          the pattern
+   * @param value
+   *          the value
+   * @return true, if the value is null or matches
+   */
+  private static boolean isSupported(Pattern pattern, String value) {
+    return value == null || pattern.matcher(value).matches() && value.chars().noneMatch(c -> c >= 0x3040 && c < 0x3100);
+  }
+
+  /**
+   * Gets the ordinal suffix of a number in the en-US locale.
+   *
+   * @param number
+   *          the number
+   * @return the suffix
+   */
+  private static String ordinalSuffix(int number) {
+    if (number % 100 / 10 != 1) {
+      switch (number % 10) {
+        case 1:
+          return "st";
+        case 2:
+          return "nd";
+        case 3:
+          return "rd";
+        default:
+          break;
+      }
+    }
+    return "th";
+  }
+
+  /**
+   * Turn the typographic apostrophes as citeproc does.
+   *
+   * @param value
+   *          the value
+   * @return the string
+   */
+  private static String smartApostrophes(String value) {
+    return value.replace('\'', '\u2019');
+  }
+
+  /** The number of renderings compared with citeproc. */
+  private final AtomicLong checks = new AtomicLong();
+
+  /** The collator used to sort the entries like citeproc. */
+  private final Collator collator;
+
+  /** Tells if the renderer is enabled. */
+  private volatile boolean enabled;
+
+  /** The entry style. */
+  private final String entryStyle;
+
+  /** The number of renderings left to citeproc. */
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  /** The main style. */
+  private final String mainStyle;
+
+  /** The number of renderings. */
+  private final AtomicLong renderings = new AtomicLong();
+
+  /**
+   * Instantiates a new bundled style renderer.
+   *
+   * @param entryStyle
+   *          the bundled entry style
+   * @param mainStyle
+   *          the bundled main style
+   * @param enabled
+   *          tells if the renderer is enabled
+   */
+  public BundledStyleRenderer(String entryStyle, String mainStyle, boolean enabled) {
+    this.entryStyle = entryStyle;
+    this.mainStyle = mainStyle;
+    this.enabled = enabled;
+    // the comparison used by citeproc on Rhino (String.localeCompare)
+    this.collator = Collator.getInstance();
+    this.collator.setStrength(Collator.IDENTICAL);
+    this.collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+  }
+
+  /**
+   * Append a value with a prefix and a suffix if the value is not null.
+   *
+   * @param builder
+   *          the builder
+   * @param prefix
+   *          the prefix
+   * @param value
+   *          the value
+   * @param suffix
+   *          the suffix
+   */
+  private void append(StringBuilder builder, String prefix, String value, String suffix) {
+    if (value != null) {
+      builder.append(prefix).append(smartApostrophes(value)).append(suffix);
+    }
+  }
+
+  /**
+   * Append the collection macro.
+   *
+   * @param builder
+   *          the builder
+   * @param itemData
+   *          the item data
+   */
+  private void appendCollection(StringBuilder builder, CSLItemData itemData) {
+    if (itemData.getContainerTitle() != null) {
+      append(builder, "in ", itemData.getContainerTitle(), ", ");
+    } else {
+      append(builder, "in ", itemData.getCollectionTitle(), ", ");
+    }
+    append(builder, "", itemData.getMedium(), ", ");
+  }
+
+  /**
+   * Append a date in the text form.
+   *
+   * @param builder
+   *          the builder
+   * @param prefix
+   *          the prefix
+   * @param date
+   *          the date
+   */
+  private void appendDate(StringBuilder builder, String prefix, CSLDate date) {
+    if (date == null) {
+      return;
+    }
+    int[] parts = date.getDateParts()[0];
+    builder.append(prefix);
+    if (parts.length > 1) {
+      builder.append(MONTHS[parts[1] - 1]).append(' ');
+      if (parts.length > 2) {
+        // the text date form of the en-US locale has numeric-leading-zeros days
+        builder.append(String.format("%02d", parts[2])).append(", ");
+      }
+    }
+    builder.append(parts[0]);
+  }
+
+  /**
+   * Append the issue macro.
+   *
+   * @param builder
+   *          the builder
+   * @param itemData
+   *          the item data
+   */
+  private void appendIssue(StringBuilder builder, CSLItemData itemData) {
+    append(builder, "vol. ", itemData.getVolume(), ", ");
+    append(builder, "issue ", itemData.getIssue(), ", ");
+    append(builder, "num. ", itemData.getNumber(), ", ");
+  }
+
+  /**
+   * Append the names macro (the authors or the editors as substitute).
+   *
+   * @param builder
+   *          the builder
+   * @param itemData
+   *          the item data
+   */
+  private void appendNames(StringBuilder builder, CSLItemData itemData) {
+    CSLName[] names = itemData.getAuthor();
+    String label = "";
+    if (names == null || names.length == 0) {
+      names = itemData.getEditor();
+      if (names == null || names.length == 0) {
+        return;
+      }
+      label = names.length == 1 ? " ed" : " eds";
+    }
+    for (int i = 0; i < names.length; ++i) {
+      if (i > 0) {
+        builder.append(names.length > 2 ? ", " : " ");
+        if (i == names.length - 1) {
+          builder.append("and ");
+        }
+      }
+      if (names[i].getGiven() != null) {
+        Matcher matcher = GIVEN_PART.matcher(names[i].getGiven());
+        while (matcher.find()) {
+          builder.append(matcher.group(1)).append(matcher.group(2)).append('.');
+        }
+        builder.append(' ');
+      }
+      builder.append(names[i].getFamily());
+    }
+    builder.append(label).append(", ");
+  }
+
+  /**
+   * Append the numbers macro.
+   *
+   * @param builder
+   *          the builder
+   * @param itemData
+   *          the item data
+   */
+  private void appendNumbers(StringBuilder builder, CSLItemData itemData) {
+    append(builder, "ISSN:", itemData.getISSN(), ", ");
+    append(builder, "ISBN:", itemData.getISBN(), ", ");
+    append(builder, "DOI:", itemData.getDOI(), ", ");
+  }
+
+  /**
+   * Append the pages macro.
+   *
+   * @param builder
+   *          the builder
+   * @param itemData
+   *          the item data
+   */
+  private void appendPages(StringBuilder builder, CSLItemData itemData) {
+    if (itemData.getPage() != null) {
+      Matcher matcher = PAGE.matcher(itemData.getPage());
+      matcher.matches();
+      if (matcher.group(2) == null) {
+        builder.append("p. ").append(matcher.group(1));
+      } else {
+        builder.append("pp. ").append(matcher.group(1)).append('\u2013').append(matcher.group(2));
+      }
+      builder.append(", ");
+    }
+  }
+
+  /**
+   * Append the publisher macro.
+   *
+   * @param builder
+   *          the builder
+   * @param itemData
+   *          the item data
+   */
+  private void appendPublisher(StringBuilder builder, CSLItemData itemData) {
+    append(builder, "", itemData.getPublisher(), ", ");
+    append(builder, "", itemData.getPublisherPlace(), ", ");
+  }
+
+  /**
+   * Make the link of a citation number of the main style.
+   *
+   * @param number
+   *          the citation number
+   * @return the link
+   */
+  private String citationLink(int number) {
+    return "[[" + number + ">>" + CITE_TARGET_MARK + "||anchor=\"bibentry-" + number + "\"]]";
+  }
+
+  /**
+   * Compare two sort keys like citeproc does.
+   *
+   * @param key1
+   *          the first key
+   * @param key2
+   *          the second key
+   * @return the comparison result
+   */
+  private int compare(String[] key1, String[] key2) {
+    for (int i = 0; i < key1.length; ++i) {
+      if (Objects.equals(key1[i], key2[i])) {
+        continue;
+      }
+      // undefined keys come last
+      if (key1[i] == null) {
+        return 1;
+      }
+      if (key2[i] == null) {
+        return -1;
+      }
+      int cmp = collator.compare(key1[i].toLowerCase(Locale.getDefault()), key2[i].toLowerCase(Locale.getDefault()));
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Disable the renderer (its output differs from the one of citeproc).
+   */
+  public void disable() {
+    enabled = false;
+  }
+
+  /**
+   * Gets the statistics of the renderer.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "enabled", enabled ? 1 : 0);
+    statistics.put(prefix + "renderings", renderings.get());
+    statistics.put(prefix + "fallbacks", fallbacks.get());
+    statistics.put(prefix + "checks", Math.min(checks.get(), CHECKS));
+  }
+
+  /**
+   * Checks if the entry only contains values which are rendered unchanged by
+   * citeproc.
+   *
+   * @param itemData
+   *          the item data
+   * @return true, if is supported
+   */
+  private boolean isSupported(CSLItemData itemData) {
+    return itemData.getId() != null && itemData.getType() != null && itemData.getTitle() != null
+        && isSupported(TEXT, itemData.getTitle()) && isSupported(itemData.getAuthor())
+        && isSupported(itemData.getEditor()) && isSupported(itemData.getIssued())
+        && isSupported(itemData.getAccessed()) && isSupported(TEXT, itemData.getContainerTitle())
+        && isSupported(TEXT, itemData.getCollectionTitle()) && isSupported(TEXT, itemData.getMedium())
+        && isSupported(TEXT, itemData.getVolume()) && isSupported(TEXT, itemData.getIssue())
+        && isSupported(TEXT, itemData.getNumber()) && isSupported(TEXT, itemData.getPublisher())
+        && isSupported(TEXT, itemData.getPublisherPlace()) && isSupported(TEXT, itemData.getISSN())
+        && isSupported(TEXT, itemData.getISBN()) && isSupported(TEXT, itemData.getDOI())
+        && isSupported(TEXT, itemData.getGenre()) && isSupported(PAGE, itemData.getPage())
+        && isSupported(INTEGER, itemData.getEdition()) && isSupported(INTEGER, itemData.getChapterNumber())
+        && isSupported(URL, itemData.getURL());
+  }
+
+  /**
+   * Render the entries with one of the bundled styles.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale (null for the citeproc default locale)
+   * @param itemDatas
+   *          the entries
+   * @return the rendered bibliography or null if the renderer is disabled or
+   *         if the style, the locale or one of the entries is not supported
+   */
+  public RenderedBibliography render(String style, String locale, List<CSLItemData> itemDatas) {
+    if (!enabled) {
+      return null;
+    }
+    Kind kind;
+    if (style.equals(mainStyle)) {
+      kind = Kind.MAIN;
+    } else if (style.equals(entryStyle)) {
+      kind = Kind.ENTRY;
+    } else {
+      return null;
+    }
+    if (locale != null && !Arrays.asList("en", "en_US", "en-US").contains(locale) || itemDatas.isEmpty()) {
+      fallbacks.incrementAndGet();
+      return null;
+    }
+    for (CSLItemData itemData : itemDatas) {
+      if (!isSupported(itemData)) {
+        fallbacks.incrementAndGet();
+        return null;
+      }
+    }
+    renderings.incrementAndGet();
+
+    // entries are numbered in the bibliography order, ties are kept in the
+    // registration order
+    List<String[]> keys = new ArrayList<>();
+    List<Integer> order = new ArrayList<>();
+    for (CSLItemData itemData : itemDatas) {
+      order.add(keys.size());
+      keys.add(sortKey(itemData));
+    }
+    order.sort((a, b) -> compare(keys.get(a), keys.get(b)));
+
+    RenderedBibliography rendered = new RenderedBibliography();
+    rendered.setStyleHash(style.hashCode());
+    rendered.setBibStart("");
+    rendered.setBibEnd("");
+    for (int i = 0; i < order.size(); ++i) {
+      CSLItemData itemData = itemDatas.get(order.get(i));
+      int number = i + 1;
+      rendered.getEntryIds().add(itemData.getId());
+      rendered.getEntries().add(renderEntry(kind, itemData, number));
+      if (kind == Kind.MAIN) {
+        rendered.getCitations().put(itemData.getId(), "~[" + citationLink(number) + "]");
+      } else {
+        rendered.getCitations().put(itemData.getId(), "~[" + number + "]");
+      }
+    }
+    return rendered;
+  }
+
+  /**
+   * Render a citation of the main style from the citation numbers of the
+   * entries. The style sorts the numbers of a citation without collapsing them
+   * and does not print the locators.
+   *
+   * @param style
+   *          the style
+   * @param numbering
+   *          the citation numbers by key
+   * @param keys
+   *          the keys of the citation
+   * @return the citation or null if the renderer is disabled, if the style is
+   *         not the main style or if a key is not numbered
+   */
+  public String renderCitation(String style, Map<String, Integer> numbering, List<String> keys) {
+    if (!enabled || !style.equals(mainStyle) || keys.isEmpty()) {
+      return null;
+    }
+    List<Integer> numbers = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      Integer number = numbering.get(key);
+      if (number == null) {
+        return null;
+      }
+      numbers.add(number);
+    }
+    Collections.sort(numbers);
+
+    StringBuilder builder = new StringBuilder("~[");
+    for (int i = 0; i < numbers.size(); ++i) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(citationLink(numbers.get(i)));
+    }
+    return builder.append(']').toString();
+  }
+
+  /**
+   * Render a bibliography entry.
+   *
+   * @param kind
+   *          the kind of style
+   * @param itemData
+   *          the item data
+   * @param number
+   *          the citation number
+   * @return the string
+   */
+  private String renderEntry(Kind kind, CSLItemData itemData, int number) {
+    StringBuilder builder = new StringBuilder("\n");
+    if (kind == Kind.MAIN) {
+      builder.append("{{id name=\"bibentry-").append(number).append("\"/}}~[").append(number).append("] ");
+    }
+    appendNames(builder, itemData);
+    append(builder, "[[", STRIPPED_PERIOD.matcher(itemData.getTitle()).replaceAll("$1"),
+        ">>" + ENTRY_TARGET_MARK + "]], ");
+
+    CSLType type = itemData.getType();
+    if (BOOK_TYPES.contains(type)) {
+      if (itemData.getEdition() != null) {
+        int edition = Integer.parseInt(itemData.getEdition());
+        builder.append(edition <= LONG_ORDINALS.length ? LONG_ORDINALS[edition - 1] : edition + ordinalSuffix(edition))
+            .append(" edition, ");
+      }
+      append(builder, "", itemData.getGenre(), ", ");
+      appendIssue(builder, itemData);
+      appendPublisher(builder, itemData);
+      appendNumbers(builder, itemData);
+    } else if (type == CSLType.CHAPTER) {
+      // the label of the chapter number is empty, the en-US locale having no
+      // chapter-number term
+      append(builder, "", itemData.getChapterNumber(), ", ");
+      appendCollection(builder, itemData);
+      appendIssue(builder, itemData);
+      appendPublisher(builder, itemData);
+      appendNumbers(builder, itemData);
+    } else if (type == CSLType.WEBPAGE) {
+      append(builder, "", itemData.getURL(), ", ");
+      appendDate(builder, "Accessed: ", itemData.getAccessed());
+    } else {
+      // articles and other types share the same layout
+      appendCollection(builder, itemData);
+      appendIssue(builder, itemData);
+      appendPages(builder, itemData);
+      appendPublisher(builder, itemData);
+      appendNumbers(builder, itemData);
+    }
+    appendDate(builder, "", itemData.getIssued());
+    builder.append(".\n");
+    return builder.toString();
+  }
+
+  /**
+   * Tells if a rendering must be compared with the output of citeproc. The
+   * first renderings are checked so that a difference (for instance with
+   * another version of citeproc) disables the renderer.
+   *
+   * @return true, if the rendering must be checked
+   */
+  public boolean shouldCheck() {
+    return checks.get() < CHECKS && checks.incrementAndGet() <= CHECKS;
+  }
+
+  /**
+   * Compute the sort key of an entry (author, issued, title) as citeproc does.
+   *
+   * @param itemData
+   *          the item data
+   * @return the sort key
+   */
+  private String[] sortKey(CSLItemData itemData) {
+    String author = null;
+    if (itemData.getAuthor() != null && itemData.getAuthor().length > 0) {
+      StringBuilder builder = new StringBuilder();
+      for (CSLName name : itemData.getAuthor()) {
+        if (builder.length() > 0) {
+          builder.append(' ');
+        }
+        builder.append(name.getFamily());
+        if (name.getGiven() != null) {
+          builder.append(' ').append(name.getGiven());
+        }
+      }
+      author = builder.toString();
+    }
+
+    String issued = null;
+    if (itemData.getIssued() != null) {
+      int[] parts = itemData.getIssued().getDateParts()[0];
+      issued = String.format("Y%04d%02d%02dY00000000", parts[0], parts.length > 1 ? parts[1] : 0,
+          parts.length > 2 ? parts[2] : 0);
+    }
+
+    String title = LEADING_ARTICLE.matcher(smartApostrophes(itemData.getTitle())).replaceFirst("");
+    return new String[] { author, issued, title };
+  }
+
+}
@@ -0,0 +1,205 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import de.undercouch.citeproc.CSL;
+import de.undercouch.citeproc.ItemDataProvider;
+import de.undercouch.citeproc.csl.CSLItemData;
+
+/**
+ * A citeproc engine (JavaScript runtime with citeproc.js, the style and the
+ * locale loaded) which can be reused to render different sets of entries.
+ */
+public class CSLEngine {
+
+  /**
+   * An item data provider whose items can be replaced between two uses of the
+   * engine.
+   */
+  private static final class SwitchableItemDataProvider implements ItemDataProvider {
+
+    /** The items. */
+    private volatile Map<String, CSLItemData> items = Collections.emptyMap();
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.undercouch.citeproc.ItemDataProvider#getIds()
+     */
+    @Override
+    public String[] getIds() {
+      return items.keySet().toArray(new String[0]);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.undercouch.citeproc.ItemDataProvider#retrieveItem(java.lang.
+     * String)
+     */
+    @Override
+    public CSLItemData retrieveItem(String id) {
+      return items.get(id);
+    }
+
+    /**
+     * Sets the items.
+     *
+     * @param itemDatas
+     *          the new items
+     */
+    void setItems(Collection<CSLItemData> itemDatas) {
+      Map<String, CSLItemData> map = new LinkedHashMap<>();
+      for (CSLItemData itemData : itemDatas) {
+        map.put(itemData.getId(), itemData);
+      }
+      items = map;
+    }
+  }
+
+  /** The CSL processor. */
+  private final CSL csl;
+
+  /** The locale (null for the citeproc default locale). */
+  private final String locale;
+
+  /** Tells if the engine is accounted in the pool. */
+  private boolean pooled = true;
+
+  /** The item data provider. */
+  private final SwitchableItemDataProvider provider;
+
+  /** The style. */
+  private final String style;
+
+  /** The content currently loaded in the engine (null if unknown). */
+  private Object tag;
+
+  /** The number of uses since the content was loaded. */
+  private int uses;
+
+  /**
+   * Instantiates a new engine. This is an expensive operation.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale (null for the citeproc default locale)
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public CSLEngine(String style, String locale) throws IOException {
+    this.provider = new SwitchableItemDataProvider();
+    this.csl = locale == null ? new CSL(provider, style) : new CSL(provider, style, locale);
+    this.style = style;
+    this.locale = locale;
+  }
+
+  /**
+   * Gets the CSL processor.
+   *
+   * @return the CSL processor
+   */
+  public CSL getCSL() {
+    return csl;
+  }
+
+  /**
+   * Gets the tag of the loaded content.
+   *
+   * @return the tag
+   */
+  public Object getTag() {
+    return tag;
+  }
+
+  /**
+   * Gets the number of uses since the content was loaded.
+   *
+   * @return the uses
+   */
+  int getUses() {
+    return uses;
+  }
+
+  /**
+   * Checks if the engine is accounted in the pool.
+   *
+   * @return true, if is pooled
+   */
+  boolean isPooled() {
+    return pooled;
+  }
+
+  /**
+   * Increment the number of uses.
+   */
+  void incrementUses() {
+    uses++;
+  }
+
+  /**
+   * Replace the entries known by the engine and reset its state and options to
+   * those of a new CSL processor. The entries still have to be registered.
+   *
+   * @param itemDatas
+   *          the entries
+   */
+  public void load(Collection<CSLItemData> itemDatas) {
+    provider.setItems(itemDatas);
+    csl.reset();
+    csl.setOutputFormat("html");
+    csl.setConvertLinks(false);
+    tag = null;
+    uses = 0;
+  }
+
+  /**
+   * Checks if the engine has been built for the given style and locale.
+   *
+   * @param otherStyle
+   *          the style
+   * @param otherLocale
+   *          the locale
+   * @return true, if successful
+   */
+  boolean matches(String otherStyle, String otherLocale) {
+    return style.equals(otherStyle) && Objects.equals(locale, otherLocale);
+  }
+
+  /**
+   * Sets if the engine is accounted in the pool.
+   *
+   * @param pooled
+   *          the new pooled
+   */
+  void setPooled(boolean pooled) {
+    this.pooled = pooled;
+  }
+
+  /**
+   * Sets the tag describing the loaded content so that the engine can be
+   * reused without reloading it.
+   *
+   * @param tag
+   *          the new tag
+   */
+  public void setTag(Object tag) {
+    this.tag = tag;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "CSLEngine [style=" + style.hashCode() + ", locale=" + locale + ", tag=" + tag + ", uses=" + uses + "]";
+  }
+}
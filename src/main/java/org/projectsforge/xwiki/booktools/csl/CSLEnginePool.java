@@ -0,0 +1,350 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.undercouch.citeproc.CSL;
+
+/**
+ * A bounded pool of citeproc engines. Starting an engine is expensive, so
+ * engines are checked out for a rendering and given back afterwards. An idle
+ * engine keeps the content it was loaded with (see {@link CSLEngine#getTag()})
+ * so that it can be reused as is by {@link #acquireTagged(Object)}.
+ */
+public class CSLEnginePool {
+
+  /** The default maximum number of engines. */
+  public static final int DEFAULT_SIZE = 4;
+
+  /** The default maximum time to wait for an engine in seconds. */
+  public static final int DEFAULT_TIMEOUT = 30;
+
+  /**
+   * The maximum number of renderings done by an engine without reloading its
+   * content. Each citation is kept by citeproc so the state must be reset
+   * after a while.
+   */
+  public static final int MAX_USES = 100;
+
+  /** The logger. */
+  private static Logger logger = LoggerFactory.getLogger(CSLEnginePool.class);
+
+  /** The number of acquisitions. */
+  private long acquisitions;
+
+  /** The engines currently handed to callers. */
+  private final Map<CSL, CSLEngine> busy = new IdentityHashMap<>();
+
+  /** The number of created engines. */
+  private long created;
+
+  /** The idle engines, least recently used first. */
+  private final LinkedList<CSLEngine> idle = new LinkedList<>();
+
+  /** The number of live engines (idle, busy or being created). */
+  private int live;
+
+  /** The maximum wait time in nanoseconds. */
+  private long maxWait;
+
+  /** The number of engines created beyond the pool size after a timeout. */
+  private long overflows;
+
+  /** The size. */
+  private final int size;
+
+  /** The timeout in nanoseconds. */
+  private final long timeout;
+
+  /** The total wait time in nanoseconds. */
+  private long totalWait;
+
+  /**
+   * Instantiates a new pool.
+   *
+   * @param size
+   *          the maximum number of engines
+   * @param timeout
+   *          the maximum time to wait for an engine in seconds
+   */
+  public CSLEnginePool(int size, int timeout) {
+    this.size = Math.max(1, size);
+    this.timeout = TimeUnit.SECONDS.toNanos(timeout);
+  }
+
+  /**
+   * Check out an engine for the given style and locale. The content of the
+   * engine is undefined and must be loaded with
+   * {@link CSLEngine#load(java.util.Collection)}.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale (null for the citeproc default locale)
+   * @return the engine
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public CSLEngine acquire(String style, String locale) throws IOException {
+    long start = System.nanoTime();
+    boolean overflow = false;
+
+    synchronized (this) {
+      while (true) {
+        CSLEngine engine = takeIdle(e -> e.matches(style, locale));
+        if (engine != null) {
+          checkedOut(engine, start);
+          return engine;
+        }
+        if (live < size) {
+          break;
+        }
+        if (!idle.isEmpty()) {
+          // make room by dropping the least recently used engine
+          idle.removeFirst();
+          live--;
+          continue;
+        }
+        long remaining = timeout - (System.nanoTime() - start);
+        if (remaining <= 0) {
+          logger.warn("No citeproc engine available after {}s, creating an extra one",
+              TimeUnit.NANOSECONDS.toSeconds(timeout));
+          overflow = true;
+          overflows++;
+          break;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for a citeproc engine", ex);
+        }
+      }
+      if (!overflow) {
+        live++;
+      }
+    }
+
+    // engine creation is slow, so it is done outside of the lock
+    CSLEngine engine;
+    try {
+      engine = new CSLEngine(style, locale);
+    } catch (IOException | RuntimeException ex) {
+      synchronized (this) {
+        if (!overflow) {
+          live--;
+          notifyAll();
+        }
+      }
+      throw ex;
+    }
+    synchronized (this) {
+      created++;
+      if (overflow) {
+        // the engine is not accounted in the pool and will be dropped on
+        // release
+        engine.setPooled(false);
+      }
+      checkedOut(engine, start);
+    }
+    return engine;
+  }
+
+  /**
+   * Check out the idle engine loaded with the given content.
+   *
+   * @param tag
+   *          the tag of the content
+   * @return the engine or null if there is no such idle engine
+   */
+  public synchronized CSLEngine acquireTagged(Object tag) {
+    CSLEngine engine = takeIdle(e -> tag.equals(e.getTag()));
+    if (engine != null) {
+      checkedOut(engine, System.nanoTime());
+    }
+    return engine;
+  }
+
+  /**
+   * Record the check out of an engine.
+   *
+   * @param engine
+   *          the engine
+   * @param start
+   *          the start of the acquisition
+   */
+  private void checkedOut(CSLEngine engine, long start) {
+    long wait = System.nanoTime() - start;
+    acquisitions++;
+    totalWait += wait;
+    maxWait = Math.max(maxWait, wait);
+    busy.put(engine.getCSL(), engine);
+  }
+
+  /**
+   * Gets the busy engine owning a CSL processor.
+   *
+   * @param csl
+   *          the CSL processor
+   * @return the engine or null if the processor is not handled by the pool
+   */
+  public synchronized CSLEngine getBusyEngine(CSL csl) {
+    return busy.get(csl);
+  }
+
+  /**
+   * Gets the maximum number of engines.
+   *
+   * @return the size
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the statistics of the pool.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public synchronized void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "size", size);
+    statistics.put(prefix + "live", live);
+    statistics.put(prefix + "idle", idle.size());
+    statistics.put(prefix + "created", created);
+    statistics.put(prefix + "overflows", overflows);
+    statistics.put(prefix + "acquisitions", acquisitions);
+    statistics.put(prefix + "waitTotalMs", TimeUnit.NANOSECONDS.toMillis(totalWait));
+    statistics.put(prefix + "waitMaxMs", TimeUnit.NANOSECONDS.toMillis(maxWait));
+  }
+
+  /**
+   * Count the idle engines whose tag matches the predicate.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the count
+   */
+  public synchronized int countTagged(Predicate<Object> predicate) {
+    int count = 0;
+    for (CSLEngine engine : idle) {
+      if (engine.getTag() != null && predicate.test(engine.getTag())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Give back an engine. The engine keeps its tag unless it has been used too
+   * many times.
+   *
+   * @param engine
+   *          the engine
+   */
+  public synchronized void release(CSLEngine engine) {
+    if (busy.remove(engine.getCSL()) == null) {
+      return;
+    }
+    if (!engine.isPooled()) {
+      return;
+    }
+    engine.incrementUses();
+    if (engine.getUses() >= MAX_USES) {
+      engine.setTag(null);
+    }
+    idle.addLast(engine);
+    notifyAll();
+  }
+
+  /**
+   * Take the least recently used idle engine matching the predicate.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the engine or null
+   */
+  private CSLEngine takeIdle(Predicate<CSLEngine> predicate) {
+    for (Iterator<CSLEngine> it = idle.iterator(); it.hasNext();) {
+      CSLEngine engine = it.next();
+      if (predicate.test(engine)) {
+        it.remove();
+        return engine;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forget the content of the idle engines whose tag matches the predicate.
+   * Busy engines are not modified, their content is forgotten on release.
+   *
+   * @param predicate
+   *          the predicate
+   */
+  public synchronized void untag(Predicate<Object> predicate) {
+    for (CSLEngine engine : idle) {
+      if (engine.getTag() != null && predicate.test(engine.getTag())) {
+        engine.setTag(null);
+      }
+    }
+    for (CSLEngine engine : busy.values()) {
+      if (engine.getTag() != null && predicate.test(engine.getTag())) {
+        engine.setTag(null);
+      }
+    }
+  }
+
+  /**
+   * Start engines for the given style and locale until the requested number of
+   * idle engines is available or the pool is full.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale (null for the citeproc default locale)
+   * @param count
+   *          the number of engines
+   */
+  public void warmUp(String style, String locale, int count) {
+    for (int i = 0; i < count; ++i) {
+      synchronized (this) {
+        int matching = 0;
+        for (CSLEngine engine : idle) {
+          if (engine.matches(style, locale)) {
+            matching++;
+          }
+        }
+        if (matching >= count || live >= size) {
+          return;
+        }
+        live++;
+      }
+      try {
+        CSLEngine engine = new CSLEngine(style, locale);
+        synchronized (this) {
+          created++;
+          idle.addLast(engine);
+          notifyAll();
+        }
+      } catch (IOException | RuntimeException ex) {
+        synchronized (this) {
+          live--;
+          notifyAll();
+        }
+        logger.warn("Can not warm up citeproc engine", ex);
+        return;
+      }
+    }
+  }
+}
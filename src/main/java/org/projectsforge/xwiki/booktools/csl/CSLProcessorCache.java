@@ -0,0 +1,226 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.util.Objects;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+
+import de.undercouch.citeproc.CSL;
+
+/**
+ * Cache of ready-to-use CSL processors (entries registered and numbered) by
+ * index. The processors are the engines of a {@link CSLEnginePool} tagged with
+ * the index they have been loaded with. A CSL processor is stateful, so it is
+ * handed to a single caller at a time : it is checked out by
+ * {@link #acquire(Key)} and given back by {@link #release(CSL)}.
+ */
+public class CSLProcessorCache {
+
+  /**
+   * The key of a cached processor.
+   */
+  public static final class Key {
+
+    /** The index reference. */
+    private final DocumentReference indexReference;
+
+    /** The index version. */
+    private final String indexVersion;
+
+    /** The locale. */
+    private final String locale;
+
+    /** The style. */
+    private final String style;
+
+    /**
+     * Instantiates a new key.
+     *
+     * @param indexReference
+     *          the index document reference
+     * @param indexVersion
+     *          the index document version
+     * @param style
+     *          the style
+     * @param locale
+     *          the locale
+     */
+    public Key(DocumentReference indexReference, String indexVersion, String style, String locale) {
+      this.indexReference = indexReference;
+      this.indexVersion = indexVersion;
+      this.style = style;
+      this.locale = locale;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return Objects.equals(style, other.style) && Objects.equals(indexReference, other.indexReference)
+          && Objects.equals(indexVersion, other.indexVersion) && Objects.equals(locale, other.locale);
+    }
+
+    /**
+     * Gets the index reference.
+     *
+     * @return the index reference
+     */
+    public DocumentReference getIndexReference() {
+      return indexReference;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return Objects.hash(indexReference, indexVersion, style, locale);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return "Key [index=" + indexReference + ", version=" + indexVersion + ", style=" + Objects.hashCode(style) + ", locale="
+          + locale + "]";
+    }
+  }
+
+  /** The hits. */
+  private long hits;
+
+  /** The misses. */
+  private long misses;
+
+  /** The engine pool holding the processors. */
+  private final CSLEnginePool pool;
+
+  /**
+   * Instantiates a new CSL processor cache.
+   *
+   * @param pool
+   *          the engine pool holding the processors
+   */
+  public CSLProcessorCache(CSLEnginePool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Acquire the cached processor for the key.
+   *
+   * @param key
+   *          the key
+   * @return the processor or null if none is available
+   */
+  public CSL acquire(Key key) {
+    CSLEngine engine = pool.acquireTagged(key);
+    synchronized (this) {
+      if (engine == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+    }
+    return engine.getCSL();
+  }
+
+  /**
+   * Remove all the processors.
+   */
+  public void clear() {
+    pool.untag(tag -> tag instanceof Key);
+  }
+
+  /**
+   * Gets the hits.
+   *
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the misses.
+   *
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of idle processors.
+   *
+   * @return the size
+   */
+  public int getSize() {
+    return pool.countTagged(tag -> tag instanceof Key);
+  }
+
+  /**
+   * Remove the processors built for an index.
+   *
+   * @param indexReference
+   *          the index reference
+   */
+  public void invalidate(DocumentReference indexReference) {
+    pool.untag(tag -> tag instanceof Key && ((Key) tag).getIndexReference().equals(indexReference));
+  }
+
+  /**
+   * Remove the processors built for the indexes of a wiki.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   */
+  public void invalidate(WikiReference wikiReference) {
+    pool.untag(tag -> tag instanceof Key
+        && ((Key) tag).getIndexReference().getWikiReference().equals(wikiReference));
+  }
+
+  /**
+   * Give back a processor. The processor stays cached unless it has been
+   * invalidated in the meantime or used too many times.
+   *
+   * @param csl
+   *          the processor
+   */
+  public void release(CSL csl) {
+    CSLEngine engine = pool.getBusyEngine(csl);
+    if (engine != null) {
+      pool.release(engine);
+    }
+  }
+
+  /**
+   * Track a newly built processor so that it is cached when released.
+   *
+   * @param key
+   *          the key
+   * @param csl
+   *          the processor
+   */
+  public void track(Key key, CSL csl) {
+    CSLEngine engine = pool.getBusyEngine(csl);
+    if (engine != null) {
+      engine.setTag(key);
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.undercouch.citeproc.output.Bibliography;
+
+/**
+ * The output of citeproc for an index in a given locale : the bibliography
+ * entries and the citation label of each key. It is stored in the index so
+ * that views do not need to run citeproc.
+ */
+public class RenderedBibliography {
+
+  /** The bibliography start. */
+  private String bibStart;
+
+  /** The bibliography end. */
+  private String bibEnd;
+
+  /** The citation label by key. */
+  private Map<String, String> citations = new HashMap<>();
+
+  /** The entries. */
+  private List<String> entries = new ArrayList<>();
+
+  /** The entry ids. */
+  private List<String> entryIds = new ArrayList<>();
+
+  /** The hash of the style used for the rendering. */
+  private int styleHash;
+
+  /**
+   * Instantiates a new empty rendered bibliography.
+   */
+  public RenderedBibliography() {
+  }
+
+  /**
+   * Instantiates a new rendered bibliography from the output of citeproc.
+   *
+   * @param styleHash
+   *          the hash of the style used for the rendering
+   * @param bibliography
+   *          the bibliography
+   */
+  public RenderedBibliography(int styleHash, Bibliography bibliography) {
+    this.styleHash = styleHash;
+    this.bibStart = bibliography.getBibStart();
+    this.bibEnd = bibliography.getBibEnd();
+    if (bibliography.getEntries() != null) {
+      this.entryIds.addAll(Arrays.asList(bibliography.getEntryIds()));
+      this.entries.addAll(Arrays.asList(bibliography.getEntries()));
+    }
+  }
+
+  /**
+   * Gets the bibliography end.
+   *
+   * @return the bibliography end
+   */
+  public String getBibEnd() {
+    return bibEnd;
+  }
+
+  /**
+   * Gets the bibliography start.
+   *
+   * @return the bibliography start
+   */
+  public String getBibStart() {
+    return bibStart;
+  }
+
+  /**
+   * Gets the citation label by key.
+   *
+   * @return the citations
+   */
+  public Map<String, String> getCitations() {
+    return citations;
+  }
+
+  /**
+   * Gets the entries.
+   *
+   * @return the entries
+   */
+  public List<String> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Gets the entry ids.
+   *
+   * @return the entry ids
+   */
+  public List<String> getEntryIds() {
+    return entryIds;
+  }
+
+  /**
+   * Gets the hash of the style used for the rendering.
+   *
+   * @return the style hash
+   */
+  public int getStyleHash() {
+    return styleHash;
+  }
+
+  /**
+   * Sets the bibliography end.
+   *
+   * @param bibEnd
+   *          the new bibliography end
+   */
+  public void setBibEnd(String bibEnd) {
+    this.bibEnd = bibEnd;
+  }
+
+  /**
+   * Sets the bibliography start.
+   *
+   * @param bibStart
+   *          the new bibliography start
+   */
+  public void setBibStart(String bibStart) {
+    this.bibStart = bibStart;
+  }
+
+  /**
+   * Sets the citation label by key.
+   *
+   * @param citations
+   *          the citations
+   */
+  public void setCitations(Map<String, String> citations) {
+    this.citations = citations;
+  }
+
+  /**
+   * Sets the entries.
+   *
+   * @param entries
+   *          the new entries
+   */
+  public void setEntries(List<String> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Sets the entry ids.
+   *
+   * @param entryIds
+   *          the new entry ids
+   */
+  public void setEntryIds(List<String> entryIds) {
+    this.entryIds = entryIds;
+  }
+
+  /**
+   * Sets the hash of the style used for the rendering.
+   *
+   * @param styleHash
+   *          the new style hash
+   */
+  public void setStyleHash(int styleHash) {
+    this.styleHash = styleHash;
+  }
+
+}
@@ -0,0 +1,132 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Cache of the bibliographies of the indexes rendered for the locales which are
+ * not rendered by the index update. Such a bibliography is rendered on the
+ * first view in its locale from the entries stored on the index, and is kept
+ * as long as the version of the index and the style do not change, with the
+ * same keys as the CSL processors.
+ */
+public class RenderedBibliographyCache {
+
+  /** The default maximum number of bibliographies. */
+  public static final int DEFAULT_MAX_SIZE = 256;
+
+  /** The bibliographies by key in access order. */
+  private final LinkedHashMap<CSLProcessorCache.Key, RenderedBibliography> bibliographies = new LinkedHashMap<>(16,
+      0.75f, true);
+
+  /** The hits. */
+  private long hits;
+
+  /** The max size. */
+  private final int maxSize;
+
+  /** The misses. */
+  private long misses;
+
+  /**
+   * Instantiates a new rendered bibliography cache with the default size.
+   */
+  public RenderedBibliographyCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Instantiates a new rendered bibliography cache.
+   *
+   * @param maxSize
+   *          the maximum number of bibliographies
+   */
+  public RenderedBibliographyCache(int maxSize) {
+    this.maxSize = Math.max(1, maxSize);
+  }
+
+  /**
+   * Gets a cached bibliography.
+   *
+   * @param key
+   *          the key
+   * @return the bibliography or null if it is not cached
+   */
+  public synchronized RenderedBibliography get(CSLProcessorCache.Key key) {
+    RenderedBibliography bibliography = bibliographies.get(key);
+    if (bibliography == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return bibliography;
+  }
+
+  /**
+   * Gets the hits.
+   *
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the misses.
+   *
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of cached bibliographies.
+   *
+   * @return the size
+   */
+  public synchronized int getSize() {
+    return bibliographies.size();
+  }
+
+  /**
+   * Remove the bibliographies of an index.
+   *
+   * @param indexReference
+   *          the index reference
+   */
+  public synchronized void invalidate(DocumentReference indexReference) {
+    bibliographies.keySet().removeIf(key -> key.getIndexReference().equals(indexReference));
+  }
+
+  /**
+   * Remove the bibliographies of the indexes of a wiki.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   */
+  public synchronized void invalidate(WikiReference wikiReference) {
+    bibliographies.keySet().removeIf(key -> key.getIndexReference().getWikiReference().equals(wikiReference));
+  }
+
+  /**
+   * Cache a bibliography. The bibliography must not be modified afterwards.
+   *
+   * @param key
+   *          the key
+   * @param bibliography
+   *          the bibliography
+   */
+  public synchronized void put(CSLProcessorCache.Key key, RenderedBibliography bibliography) {
+    bibliographies.put(key, bibliography);
+    if (bibliographies.size() > maxSize) {
+      Iterator<CSLProcessorCache.Key> it = bibliographies.keySet().iterator();
+      it.next();
+      it.remove();
+    }
+  }
+
+}
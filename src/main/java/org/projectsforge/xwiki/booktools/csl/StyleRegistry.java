@@ -0,0 +1,99 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Registry of the CSL styles. The bundled styles are read from the classpath
+ * once and the styles configured on a wiki are resolved once until the
+ * configuration of the wiki changes.
+ */
+public class StyleRegistry {
+
+  /** The bundled styles by field name. */
+  private static final Map<String, String> DEFAULT_STYLES = new ConcurrentHashMap<>();
+
+  /** The logger. */
+  private static Logger logger = LoggerFactory.getLogger(StyleRegistry.class);
+
+  /** The styles resolved by wiki and field name. */
+  private final Map<WikiReference, Map<String, String>> wikiStyles = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the style bundled in the classpath for a configuration field.
+   *
+   * @param fieldName
+   *          the field name
+   * @return the style or null if there is no such style
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  public static String getDefaultStyle(String fieldName) throws IOException {
+    String style = DEFAULT_STYLES.get(fieldName);
+    if (style == null) {
+      try (InputStream stream = StyleRegistry.class.getResourceAsStream("/csl/" + fieldName + ".csl")) {
+        if (stream == null) {
+          return null;
+        }
+        style = IOUtils.toString(stream, Charset.forName("UTF-8"));
+      }
+      DEFAULT_STYLES.put(fieldName, style);
+    }
+    return style;
+  }
+
+  /**
+   * Gets the style of a wiki for a configuration field.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   * @param fieldName
+   *          the field name
+   * @param loader
+   *          the loader used to resolve the style if it is not known yet
+   * @return the style or null if neither the loader nor the bundled styles
+   *         provide one
+   */
+  public String getStyle(WikiReference wikiReference, String fieldName, Supplier<String> loader) {
+    Map<String, String> fields = wikiStyles.computeIfAbsent(wikiReference, k -> new ConcurrentHashMap<>());
+    String style = fields.get(fieldName);
+    if (style == null) {
+      style = loader.get();
+      if (StringUtils.isBlank(style)) {
+        // no configured style, the bundled one is used
+        try {
+          style = getDefaultStyle(fieldName);
+        } catch (IOException ex) {
+          logger.warn("Can not read the bundled style " + fieldName, ex);
+          style = null;
+        }
+        if (style == null) {
+          return null;
+        }
+      }
+      fields.put(fieldName, style);
+    }
+    return style;
+  }
+
+  /**
+   * Forget the styles resolved for a wiki.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   */
+  public void invalidate(WikiReference wikiReference) {
+    wikiStyles.remove(wikiReference);
+  }
+
+}
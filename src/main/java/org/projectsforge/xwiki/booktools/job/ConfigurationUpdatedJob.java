@@ -1,13 +1,18 @@
 package org.projectsforge.xwiki.booktools.job;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.booktools.Constants;
+import org.projectsforge.xwiki.booktools.mapping.Configuration;
 import org.projectsforge.xwiki.booktools.mapping.Entry;
 import org.projectsforge.xwiki.booktools.service.BookToolsService;
 import org.xwiki.component.annotation.Component;
@@ -21,6 +26,10 @@ import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
+import com.xpn.xwiki.XWikiContext;
+
+import de.undercouch.citeproc.csl.CSLItemData;
+
 /**
  * The Class ConfigurationUpdatedJob.
  */
@@ -30,6 +39,9 @@ public class ConfigurationUpdatedJob
     extends AbstractJob<ConfigurationUpdatedJobRequest, DefaultJobStatus<ConfigurationUpdatedJobRequest>>
     implements GroupedJob {
 
+  /** The number of entries rendered together. */
+  private static final int CHUNK_SIZE = 200;
+
   /** The Constant JOB_TYPE. */
   public static final String JOB_TYPE = "booktools-configuration-updated";
 
@@ -66,6 +78,88 @@ public class ConfigurationUpdatedJob
     return JOB_TYPE;
   }
 
+  /**
+   * Checks if the entries can be rendered together with a style without
+   * changing their output : the bibliography must not be numbered or
+   * disambiguated between entries.
+   *
+   * @param style
+   *          the style
+   * @return true, if is batchable
+   */
+  private boolean isBatchable(String style) {
+    int bibliography = style.indexOf("<bibliography");
+    return bibliography != -1 && !style.substring(bibliography).contains("citation-number")
+        && !style.contains("year-suffix") && !style.contains("disambiguate");
+  }
+
+  /**
+   * Render a chunk of entries with one citeproc engine and one bibliography
+   * call, then save the entries whose rendering changed.
+   *
+   * @param style
+   *          the entry style
+   * @param entries
+   *          the entries
+   */
+  private void renderChunk(String style, List<Entry> entries) {
+    Map<String, Entry> byId = new LinkedHashMap<>();
+    List<CSLItemData> itemDatas = new ArrayList<>();
+    List<Entry> others = new ArrayList<>();
+    for (Entry entry : entries) {
+      CSLItemData itemData = entry.getCSLItemData();
+      if (itemData.getId() == null || byId.containsKey(itemData.getId())) {
+        // duplicated or invalid entries are rendered on their own
+        others.add(entry);
+      } else {
+        byId.put(itemData.getId(), entry);
+        itemDatas.add(itemData);
+      }
+    }
+
+    Map<String, String> renderedById = service.renderEntries(style, null, itemDatas);
+
+    XWikiContext context = service.getContext();
+    context.put(Constants.CONTEXT_ENTRY_RENDERED, Boolean.TRUE);
+    try {
+      for (Map.Entry<String, Entry> item : byId.entrySet()) {
+        String rendered = renderedById.get(item.getKey());
+        if (rendered == null) {
+          others.add(item.getValue());
+        } else if (item.getValue().setRendered(rendered)) {
+          item.getValue().getNode().save();
+        }
+      }
+    } finally {
+      context.remove(Constants.CONTEXT_ENTRY_RENDERED);
+    }
+
+    renderEach(others);
+  }
+
+  /**
+   * Render entries one at a time, then save the entries whose rendering
+   * changed.
+   *
+   * @param entries
+   *          the entries
+   */
+  private void renderEach(List<Entry> entries) {
+    XWikiContext context = service.getContext();
+    for (Entry entry : entries) {
+      if (!entry.update()) {
+        continue;
+      }
+      // the entry is not rendered again by the listeners
+      context.put(Constants.CONTEXT_ENTRY_RENDERED, Boolean.TRUE);
+      try {
+        entry.getNode().save();
+      } finally {
+        context.remove(Constants.CONTEXT_ENTRY_RENDERED);
+      }
+    }
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -88,10 +182,23 @@ public class ConfigurationUpdatedJob
         logger.warn("An error occurred while executing the query", ex);
       }
 
-      progressManager.pushLevelProgress(results.size(), this);
+      String style = service.getBibliographyStyle(wikiReference, Configuration.FIELD_BIBLIOGRAPHY_ENTRY_STYLE);
+      boolean batch = isBatchable(style);
+
+      progressManager.pushLevelProgress((results.size() + CHUNK_SIZE - 1) / CHUNK_SIZE, this);
       try {
-        for (String result : results) {
-          service.getDocumentWalker().getNode(documentReferenceResolver.resolve(result)).wrapAsEntry().update();
+        for (int start = 0; start < results.size(); start += CHUNK_SIZE) {
+          progressManager.startStep(this);
+          List<Entry> entries = new ArrayList<>();
+          for (String result : results.subList(start, Math.min(start + CHUNK_SIZE, results.size()))) {
+            entries.add(service.getDocumentWalker().getNode(documentReferenceResolver.resolve(result)).wrapAsEntry());
+          }
+          if (batch) {
+            renderChunk(style, entries);
+          } else {
+            renderEach(entries);
+          }
+          progressManager.endStep(this);
         }
       } finally {
         progressManager.popLevelProgress(this);
@@ -0,0 +1,323 @@
+package org.projectsforge.xwiki.booktools.job;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Coalesces the changes of the pages of the books and of the entries they
+ * cite. The changes are recorded by index and the update of an index is only
+ * scheduled once they have stopped for a quiet period, or once enough changes
+ * are pending, so that a bulk edit or an import leads to one update per index
+ * instead of one per page. The update takes the recorded changes with
+ * {@link #take(DocumentReference)} and gives them back with
+ * {@link #restore(DocumentReference, Changes)} if the index could not be saved,
+ * the changes being only kept in memory until the index is saved. The index is
+ * then flushed again after a delay doubled on each failure, and the changes
+ * are dropped after {@link #MAX_FAILURES} failures.
+ */
+public class IndexExpiryCoalescer {
+
+  /**
+   * The changes concerning an index since its last update.
+   */
+  public static final class Changes {
+
+    /** The number of times the changes have not been saved. */
+    private int failures;
+
+    /** The pending flush. */
+    private ScheduledFuture<?> flush;
+
+    /** The keys of the changed entries. */
+    private final Set<String> keys = new LinkedHashSet<>();
+
+    /** The time of the last change in nanoseconds. */
+    private long lastChange;
+
+    /** The changed pages, associated to true if the page has been deleted. */
+    private final Map<DocumentReference, Boolean> pages = new LinkedHashMap<>();
+
+    /** The time before which the index is not flushed in nanoseconds. */
+    private long retryAt;
+
+    /**
+     * Gets the keys of the changed entries.
+     *
+     * @return the keys
+     */
+    public Set<String> getKeys() {
+      return keys;
+    }
+
+    /**
+     * Gets the changed pages.
+     *
+     * @return the pages, associated to true if the page has been deleted
+     */
+    public Map<DocumentReference, Boolean> getPages() {
+      return pages;
+    }
+
+    /**
+     * Checks if there is no change.
+     *
+     * @return true, if there is no change
+     */
+    public boolean isEmpty() {
+      return keys.isEmpty() && pages.isEmpty();
+    }
+
+    /**
+     * Gets the number of changes.
+     *
+     * @return the number of changes
+     */
+    private int size() {
+      return keys.size() + pages.size();
+    }
+  }
+
+  /** The default number of changes flushing an index at once. */
+  public static final int DEFAULT_BATCH_SIZE = 50;
+
+  /** The default quiet period in milliseconds. */
+  public static final int DEFAULT_QUIET_PERIOD = 2000;
+
+  /** The minimum delay before retrying to save changes in nanoseconds. */
+  private static final long MIN_RETRY_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+  /** The number of failed saves after which the changes are dropped. */
+  public static final int MAX_FAILURES = 5;
+
+  /** The logger. */
+  private static Logger logger = LoggerFactory.getLogger(IndexExpiryCoalescer.class);
+
+  /** The batch size. */
+  private final int batchSize;
+
+  /** The executor running the flushes. */
+  private final ScheduledExecutorService executor;
+
+  /** The number of flushed indexes. */
+  private long flushes;
+
+  /** The number of dropped changes. */
+  private long drops;
+
+  /** The flusher scheduling the update of an index. */
+  private final Consumer<DocumentReference> flusher;
+
+  /** The changes by index. */
+  private final Map<DocumentReference, Changes> pending = new HashMap<>();
+
+  /** The quiet period in nanoseconds. */
+  private final long quietPeriod;
+
+  /** The number of recorded changes. */
+  private long records;
+
+  /**
+   * Instantiates a new index expiry coalescer.
+   *
+   * @param quietPeriod
+   *          the time without change before an index is flushed in
+   *          milliseconds
+   * @param batchSize
+   *          the number of changes flushing an index at once
+   * @param flusher
+   *          the flusher scheduling the update of an index
+   */
+  public IndexExpiryCoalescer(int quietPeriod, int batchSize, Consumer<DocumentReference> flusher) {
+    this.quietPeriod = TimeUnit.MILLISECONDS.toNanos(Math.max(0, quietPeriod));
+    this.batchSize = Math.max(1, batchSize);
+    this.flusher = flusher;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "booktools-index-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Record the change of a page of a book.
+   *
+   * @param indexReference
+   *          the reference of the index of the book
+   * @param pageReference
+   *          the page reference
+   * @param deleted
+   *          tells if the page has been deleted
+   */
+  public void expire(DocumentReference indexReference, DocumentReference pageReference, boolean deleted) {
+    record(indexReference, changes -> changes.pages.merge(pageReference, deleted, Boolean::logicalOr));
+  }
+
+  /**
+   * Record the change of an entry cited by a book.
+   *
+   * @param indexReference
+   *          the reference of the index of the book
+   * @param key
+   *          the key of the entry
+   */
+  public void expireEntry(DocumentReference indexReference, String key) {
+    record(indexReference, changes -> changes.keys.add(key));
+  }
+
+  /**
+   * Record a change.
+   *
+   * @param indexReference
+   *          the index reference
+   * @param change
+   *          the change to apply to the changes of the index
+   */
+  private void record(DocumentReference indexReference, Consumer<Changes> change) {
+    synchronized (this) {
+      records++;
+      Changes changes = pending.computeIfAbsent(indexReference, r -> new Changes());
+      change.accept(changes);
+      changes.lastChange = System.nanoTime();
+      // the changes which failed to be saved wait for their retry
+      if (changes.size() < batchSize || changes.failures > 0) {
+        if (changes.flush == null) {
+          changes.flush = executor.schedule(() -> flushIfQuiet(indexReference), quietPeriod, TimeUnit.NANOSECONDS);
+        }
+        return;
+      }
+      flushes++;
+    }
+    flusher.accept(indexReference);
+  }
+
+  /**
+   * Flush an index if its pages have not changed for the quiet period and the
+   * retry time of the changes has come.
+   *
+   * @param indexReference
+   *          the index reference
+   */
+  private void flushIfQuiet(DocumentReference indexReference) {
+    synchronized (this) {
+      Changes changes = pending.get(indexReference);
+      if (changes == null) {
+        return;
+      }
+      long now = System.nanoTime();
+      long wait = Math.max(quietPeriod - (now - changes.lastChange), changes.retryAt - now);
+      if (wait > 0) {
+        changes.flush = executor.schedule(() -> flushIfQuiet(indexReference), wait, TimeUnit.NANOSECONDS);
+        return;
+      }
+      changes.flush = null;
+      flushes++;
+    }
+    flusher.accept(indexReference);
+  }
+
+  /**
+   * Gets the statistics of the coalescer.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public synchronized void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "drops", drops);
+    statistics.put(prefix + "flushes", flushes);
+    statistics.put(prefix + "pending", pending.size());
+    statistics.put(prefix + "records", records);
+  }
+
+  /**
+   * Checks if changes of the pages of a book are waiting to be applied to its
+   * index.
+   *
+   * @param indexReference
+   *          the index reference
+   * @return true, if pages of the book have changed since the last update
+   */
+  public synchronized boolean hasPendingPages(DocumentReference indexReference) {
+    Changes changes = pending.get(indexReference);
+    return changes != null && !changes.pages.isEmpty();
+  }
+
+  /**
+   * Give back changes taken with {@link #take(DocumentReference)} which have
+   * not been saved with the index, merging them with the changes recorded in
+   * the meantime. The index is never flushed at once : it is flushed again
+   * after the quiet period doubled on each failure, so that an index which can
+   * not be saved is not updated in a loop, and the changes are dropped after
+   * {@link #MAX_FAILURES} failures.
+   *
+   * @param indexReference
+   *          the index reference
+   * @param changes
+   *          the changes
+   */
+  public void restore(DocumentReference indexReference, Changes changes) {
+    if (changes.isEmpty()) {
+      return;
+    }
+    int failures = changes.failures + 1;
+    if (failures >= MAX_FAILURES) {
+      synchronized (this) {
+        drops++;
+      }
+      logger.error("The changes of the index {} are dropped after {} failed saves: pages {}, entries {}",
+          indexReference, failures, changes.pages.keySet(), changes.keys);
+      return;
+    }
+    synchronized (this) {
+      Changes pendingChanges = pending.computeIfAbsent(indexReference, r -> new Changes());
+      changes.pages.forEach((page, deleted) -> pendingChanges.pages.merge(page, deleted, Boolean::logicalOr));
+      pendingChanges.keys.addAll(changes.keys);
+      pendingChanges.failures = Math.max(pendingChanges.failures, failures);
+      long delay = Math.max(quietPeriod, MIN_RETRY_DELAY) << pendingChanges.failures;
+      pendingChanges.retryAt = System.nanoTime() + delay;
+      if (pendingChanges.flush != null) {
+        pendingChanges.flush.cancel(false);
+      }
+      pendingChanges.flush = executor.schedule(() -> flushIfQuiet(indexReference), delay, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Stop the flushes.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Take the changes concerning an index recorded since the last call.
+   *
+   * @param indexReference
+   *          the index reference
+   * @return the changes
+   */
+  public synchronized Changes take(DocumentReference indexReference) {
+    Changes changes = pending.remove(indexReference);
+    if (changes == null) {
+      return new Changes();
+    }
+    if (changes.flush != null) {
+      changes.flush.cancel(false);
+    }
+    return changes;
+  }
+
+}
@@ -0,0 +1,109 @@
+package org.projectsforge.xwiki.booktools.job;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.projectsforge.xwiki.booktools.mapping.DocumentWalker.Node;
+import org.projectsforge.xwiki.booktools.mapping.Index;
+import org.projectsforge.xwiki.booktools.service.BookToolsService;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * A job rebuilding an expired index and rendering its bibliography in the
+ * background so that the readers of the book find it up to date.
+ */
+@Component
+@Named(IndexUpdateJob.JOB_TYPE)
+public class IndexUpdateJob extends AbstractJob<IndexUpdateJobRequest, DefaultJobStatus<IndexUpdateJobRequest>>
+    implements GroupedJob {
+
+  /** The Constant JOB_TYPE. */
+  public static final String JOB_TYPE = "booktools-index-update";
+
+  /** The service. */
+  @Inject
+  private BookToolsService service;
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.job.GroupedJob#getGroupPath()
+   */
+  @Override
+  public JobGroupPath getGroupPath() {
+    String wiki = this.request.getIndexReference().getWikiReference().getName();
+    return new JobGroupPath(Arrays.asList(JOB_TYPE, wiki));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.job.Job#getType()
+   */
+  @Override
+  public String getType() {
+    return JOB_TYPE;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.job.AbstractJob#runInternal()
+   */
+  @Override
+  protected void runInternal() throws Exception {
+    DocumentReference indexReference = request.getIndexReference();
+    // the changes done from now on need another update
+    service.clearScheduledIndexUpdate(indexReference);
+
+    // the index is rendered with the locales of its wiki
+    XWikiContext context = service.getContext();
+    String currentWikiId = context.getWikiId();
+    context.setWikiId(indexReference.getWikiReference().getName());
+    IndexExpiryCoalescer.Changes changes = null;
+    try {
+      Node node = service.getDocumentWalker().getNode(indexReference);
+      if (!node.isIndex()) {
+        // the index has been removed in the meantime
+        service.getCitingIndexMap().unregister(indexReference);
+        return;
+      }
+      Index index = node.wrapAsIndex();
+      // the changes of the pages of the book are applied to the index
+      changes = service.applyIndexExpiry(index);
+      if (changes.isEmpty() && !index.isExpired()) {
+        // a reader has already updated the index
+        return;
+      }
+      // the index is rebuilt and its bibliography rendered for the main locales
+      // by DocumentUpdaterListener when it is saved, the index being saved
+      // expired with the changes if the update is given up
+      if (!node.save()) {
+        service.restoreIndexExpiry(indexReference, changes);
+        return;
+      }
+      changes = null;
+      if (index.isExpired()) {
+        // the update has been given up while another one was running
+        service.scheduleIndexUpdate(indexReference);
+      }
+    } catch (Exception ex) {
+      logger.warn("An error occurred while updating index " + indexReference, ex);
+      if (changes != null) {
+        service.restoreIndexExpiry(indexReference, changes);
+      }
+    } finally {
+      context.setWikiId(currentWikiId);
+    }
+  }
+
+}
@@ -0,0 +1,35 @@
+package org.projectsforge.xwiki.booktools.job;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The Class IndexUpdateJobRequest.
+ */
+public class IndexUpdateJobRequest extends AbstractRequest {
+
+  /** The Constant PROPERTY_INDEX_REFERENCE. */
+  private static final String PROPERTY_INDEX_REFERENCE = "indexReference";
+
+  /** The Constant serialVersionUID. */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Gets the index reference.
+   *
+   * @return the index reference
+   */
+  public DocumentReference getIndexReference() {
+    return getProperty(PROPERTY_INDEX_REFERENCE);
+  }
+
+  /**
+   * Sets the index reference.
+   *
+   * @param indexReference
+   *          the new index reference
+   */
+  public void setIndexReference(DocumentReference indexReference) {
+    setProperty(PROPERTY_INDEX_REFERENCE, indexReference);
+  }
+}
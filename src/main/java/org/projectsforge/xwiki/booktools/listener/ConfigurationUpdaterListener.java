@@ -75,6 +75,7 @@ public class ConfigurationUpdaterListener implements EventListener {
     if (document.getXObject(Configuration.CLASS_REFERENCE) != null) {
       // a configuration has been saved => we trigger an update of the entries
       // to be up to date with the configuration
+      service.invalidateConfigurationCaches(document.getDocumentReference().getWikiReference());
 
       ConfigurationUpdatedJobRequest request = new ConfigurationUpdatedJobRequest();
       request.setId(Arrays.asList(ConfigurationUpdatedJob.JOB_TYPE, UUID.randomUUID().toString()));
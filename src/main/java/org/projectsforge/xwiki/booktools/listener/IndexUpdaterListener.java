@@ -7,8 +7,10 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.booktools.fields.CSLStringFields;
 import org.projectsforge.xwiki.booktools.mapping.DocumentWalker.Node;
-import org.projectsforge.xwiki.booktools.mapping.Index;
+import org.projectsforge.xwiki.booktools.mapping.Entry;
 import org.projectsforge.xwiki.booktools.service.BookToolsService;
 import org.xwiki.bridge.event.DocumentCreatedEvent;
 import org.xwiki.bridge.event.DocumentDeletedEvent;
@@ -18,10 +20,12 @@ import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.Event;
 
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
 
 /**
  * An EventListener used to monitor document creation, deletion and update to
- * trigger update on the index.
+ * trigger update on the index, once the change is saved : the changes of the
+ * pages of a book and of the entries cited by books.
  *
  * @see IndexUpdaterEvent
  */
@@ -63,7 +67,7 @@ public class IndexUpdaterListener implements EventListener {
    */
   @Override
   public void onEvent(Event event, Object sourceDocument, Object sourceContext) {
-    // this method is called before the document is saved to the database
+    // this method is called after the document is saved to the database
     XWikiDocument document = (XWikiDocument) sourceDocument;
 
     Node node = service.getDocumentWalker().wrapNode(document);
@@ -72,11 +76,25 @@ public class IndexUpdaterListener implements EventListener {
     if (rootNode.isIndex() && !node.isIndex()) {
       // a document with an associated index but not holding the index itself
       // has been found
-      // we need to expire the index and save the change.
-      // on save, the index will be updated.
-      Index index = rootNode.wrapAsIndex();
-      index.setExpired(true);
-      index.getNode().save();
+      // the change is recorded and the index is then expired and updated by a
+      // background job once the pages of the book are no more changed, so that
+      // a bulk edit leads to a single update.
+      // a batch of saves of the document walker (a reordering) holds back the
+      // change until its end instead.
+      boolean deleted = event instanceof DocumentDeletedEvent;
+      if (!service.getDocumentWalker().holdBackIndexExpiry(rootNode.getDocumentReference(),
+          node.getDocumentReference(), deleted)) {
+        service.scheduleIndexExpiry(rootNode.getDocumentReference(), node.getDocumentReference(), deleted);
+      }
+    }
+
+    // the indexes citing the entry (with its former id as well) must load it
+    // again
+    for (XWikiDocument entryDocument : Arrays.asList(document, document.getOriginalDocument())) {
+      BaseObject xobject = entryDocument == null ? null : entryDocument.getXObject(Entry.CLASS_REFERENCE);
+      if (xobject != null && StringUtils.isNotBlank(xobject.getStringValue(CSLStringFields.ID.toString()))) {
+        service.expireCitingIndexes(xobject.getStringValue(CSLStringFields.ID.toString()));
+      }
     }
   }
 
@@ -62,6 +62,7 @@ public class InitializationListener implements EventListener {
 
       if (initEvent.getRoleHint().contains("BookTools.Code.ApplicationPanelEntry")) {
         service.ensureRequirements();
+        service.warmUpCSLEngines();
       }
     }
   }
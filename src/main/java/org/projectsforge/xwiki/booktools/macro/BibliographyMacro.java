@@ -2,9 +2,11 @@ package org.projectsforge.xwiki.booktools.macro;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringJoiner;
 
@@ -14,13 +16,17 @@ import javax.inject.Provider;
 
 import org.apache.commons.lang3.StringUtils;
 import org.projectsforge.xwiki.booktools.Constants;
+import org.projectsforge.xwiki.booktools.csl.RenderedBibliography;
+import org.projectsforge.xwiki.booktools.job.IndexExpiryCoalescer;
 import org.projectsforge.xwiki.booktools.mapping.DocumentWalker.Node;
+import org.projectsforge.xwiki.booktools.mapping.Entry;
 import org.projectsforge.xwiki.booktools.mapping.Index;
 import org.projectsforge.xwiki.booktools.mapping.LocalIndex;
 import org.projectsforge.xwiki.booktools.service.BookToolsService;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.HorizontalLineBlock;
 import org.xwiki.rendering.block.MacroMarkerBlock;
 import org.xwiki.rendering.block.XDOM;
 import org.xwiki.rendering.block.match.ClassBlockMatcher;
@@ -35,9 +41,11 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
 
 import de.undercouch.citeproc.CSL;
+import de.undercouch.citeproc.SelectionMode;
 import de.undercouch.citeproc.csl.CSLCitation;
 import de.undercouch.citeproc.csl.CSLCitationItem;
-import de.undercouch.citeproc.output.Bibliography;
+import de.undercouch.citeproc.csl.CSLItemData;
+import de.undercouch.citeproc.csl.CSLItemDataBuilder;
 import de.undercouch.citeproc.output.Citation;
 
 /**
@@ -47,6 +55,43 @@ import de.undercouch.citeproc.output.Citation;
 @Named(BibliographyMacro.MACRO_NAME)
 public class BibliographyMacro extends AbstractMacro<BibliographyMacroParameters> {
 
+  /**
+   * The cites of a page sharing the same citation.
+   */
+  private static final class CiteCluster {
+
+    /** The rendered blocks (null until rendered). */
+    private List<Block> blocks;
+
+    /** The cites in document order. */
+    private final List<MacroMarkerBlock> cites = new ArrayList<>();
+
+    /** The keys. */
+    private final List<CiteKey> keys;
+
+    /** The memo key (null if the citation can not be shared). */
+    private final CitationMemo.Key memoKey;
+
+    /**
+     * The citation label stored on the index or computed from its numbering
+     * (null if it has to be rendered by citeproc).
+     */
+    private String stored;
+
+    /**
+     * Instantiates a new cite cluster.
+     *
+     * @param keys
+     *          the keys
+     * @param memoKey
+     *          the memo key
+     */
+    CiteCluster(List<CiteKey> keys, CitationMemo.Key memoKey) {
+      this.keys = keys;
+      this.memoKey = memoKey;
+    }
+  }
+
   /** The Constant DESCRIPTION. */
   private static final String DESCRIPTION = "Print bibliographic entries. Automatically triggered by the cite macro if unspecified.";
 
@@ -174,39 +219,256 @@ public class BibliographyMacro extends AbstractMacro<BibliographyMacroParameters
     if (index == null) {
       results = Collections.singletonList(parseContent("**Missing bibliography index.**", false));
     } else {
-      // update and save index if necessary
-      index.update();
-      index.getNode().save();
+      // apply the changes of the pages of the book (including the local index
+      // saved above) not yet applied by the background update
+      IndexExpiryCoalescer.Changes changes = service.applyIndexExpiry(index);
+
+      // update and save index if necessary (saving an up to date index would
+      // only drop the cached CSL processors), the stored data being used if
+      // another update of the index takes too long
+      if (index.isExpired() && !(index.update() && index.getNode().save())) {
+        // the changes are saved by the background update instead
+        service.restoreIndexExpiry(index.getNode().getDocumentReference(), changes);
+      }
+
+      String locale = context.getLocale().toString();
+
+      // use the output stored by the last index update when available
+      RenderedBibliography rendered = index.getRenderedBibliography(locale);
 
-      // generate bibliography with all keys
-      CSL csl = service.getCSL(index);
-      Bibliography bibliography = csl.makeBibliography();
+      // group the cites of the page by citation, reusing the citations already
+      // rendered on a page of the book
+      List<CiteCluster> clusters = collectClusters(index, rendered, locale, scope, cites);
 
-      // handle cite macro
-      for (MacroMarkerBlock cite : cites) {
-        cite.getParent().replaceChild(makeCiteBlocks(index, csl, scope, cite), cite);
+      // citeproc is only needed when the memo and the stored output do not
+      // cover what the page shows
+      CSL csl = null;
+      if ((rendered == null && scope != Scope.HIDDEN) || !isStored(clusters)) {
+        csl = service.getCSL(index);
       }
+      try {
+        if (rendered == null) {
+          rendered = makeBibliography(csl, scope, localIndex.getKeys());
+        }
 
-      // handle bibliography
-      switch (scope) {
-        case CITED:
-          results = makeBibliographyBlocks(index, bibliography, index.getKeys(), scope);
-          break;
-        case HIDDEN:
-          results = Collections.<Block> emptyList();
-          break;
-        case PAGE:
-          results = makeBibliographyBlocks(index, bibliography, localIndex.getKeys(), scope);
-          break;
-        default:
-          results = Collections
-              .singletonList(parseContent("**An error occurred while handling bibliography.**", false));
-          break;
+        // handle cite macro
+        renderClusters(index, csl, scope, clusters);
+
+        // handle bibliography
+        switch (scope) {
+          case CITED:
+            results = makeBibliographyBlocks(index, rendered, index.getKeys(), scope);
+            break;
+          case HIDDEN:
+            results = Collections.<Block> emptyList();
+            break;
+          case PAGE:
+            results = makeBibliographyBlocks(index, rendered, localIndex.getKeys(), scope);
+            break;
+          default:
+            results = Collections
+                .singletonList(parseContent("**An error occurred while handling bibliography.**", false));
+            break;
+        }
+      } finally {
+        // give back the CSL processor so that next views can reuse it
+        service.releaseCSL(csl);
       }
     }
     return results;
   }
 
+  /**
+   * Build the bibliography blocks without parsing the citeproc output. Each
+   * entry is built on its own with the reference of its document as link
+   * target.
+   *
+   * @param bibliography
+   *          the bibliography
+   * @param contents
+   *          the cited entries
+   * @param targets
+   *          the references of the documents of the cited entries
+   * @param scope
+   *          the scope
+   * @return the blocks or null if the output must be parsed
+   */
+  private List<Block> buildBibliographyBlocks(RenderedBibliography bibliography, List<String> contents,
+      List<String> targets, Scope scope) {
+    if (StringUtils.isNotEmpty(bibliography.getBibStart()) || StringUtils.isNotEmpty(bibliography.getBibEnd())) {
+      return null;
+    }
+    List<Block> blocks = new ArrayList<>();
+    if (scope == Scope.PAGE) {
+      blocks.add(new HorizontalLineBlock());
+    }
+    for (int i = 0; i < contents.size(); ++i) {
+      String content = contents.get(i);
+      // the entries must be separate paragraphs to be built one by one
+      if (!content.startsWith("\n") || !content.endsWith("\n")) {
+        return null;
+      }
+      List<Block> entryBlocks = CiteprocBlockBuilder.build(content, false,
+          Collections.singletonMap(Constants.ENTRY_TARGET_MARK, targets.get(i)));
+      if (entryBlocks == null) {
+        return null;
+      }
+      blocks.addAll(entryBlocks);
+    }
+    return blocks;
+  }
+
+  /**
+   * Group the displayed cites of the page by citation. When the style allows
+   * it, identical citations are rendered once and looked up in the citation
+   * memo. Hidden or empty cites are removed from the document.
+   *
+   * @param index
+   *          the index
+   * @param rendered
+   *          the rendered bibliography (null if it is not stored)
+   * @param locale
+   *          the locale
+   * @param scope
+   *          the scope
+   * @param cites
+   *          the cites in document order
+   * @return the clusters in document order
+   */
+  private List<CiteCluster> collectClusters(Index index, RenderedBibliography rendered, String locale, Scope scope,
+      List<MacroMarkerBlock> cites) {
+    CitationMemo memo = service.getCitationMemo();
+    String style = index.getBibliographyStyle();
+    boolean shareable = memo.isShareable(style);
+    String version = index.getVersion();
+
+    Map<CitationMemo.Key, CiteCluster> byKey = new HashMap<>();
+    List<CiteCluster> clusters = new ArrayList<>();
+    for (MacroMarkerBlock cite : cites) {
+      List<CiteKey> keys = CiteKey.decode(cite.getParameter(CiteMacroParameters.PARAM_KEYS));
+      if (isHidden(cite) || keys.isEmpty()) {
+        // remove cite block since it is hidden or empty
+        cite.getParent().replaceChild(Collections.<Block> emptyList(), cite);
+        continue;
+      }
+      CiteCluster cluster = null;
+      if (shareable) {
+        CitationMemo.Key key = new CitationMemo.Key(index.getNode().getDocumentReference(), version, style,
+            locale, scope, keys);
+        cluster = byKey.get(key);
+        if (cluster == null) {
+          cluster = new CiteCluster(keys, key);
+          cluster.blocks = memo.get(key);
+          byKey.put(key, cluster);
+          clusters.add(cluster);
+        }
+      } else {
+        // the output depends on the position of the citation
+        cluster = new CiteCluster(keys, null);
+        clusters.add(cluster);
+      }
+      cluster.cites.add(cite);
+    }
+
+    // the citations which are not memoized may be rendered without citeproc
+    Map<String, Integer> numbering = null;
+    for (CiteCluster cluster : clusters) {
+      if (cluster.blocks == null) {
+        cluster.stored = getStoredCitation(rendered, cluster.keys);
+        if (cluster.stored == null) {
+          if (numbering == null) {
+            numbering = index.getNumbering();
+          }
+          List<String> keys = new ArrayList<>(cluster.keys.size());
+          cluster.keys.forEach(k -> keys.add(k.getKey()));
+          cluster.stored = service.renderCitation(style, numbering, keys);
+        }
+      }
+    }
+    return clusters;
+  }
+
+  /**
+   * Gets the citation label stored for the keys of a cite macro.
+   *
+   * @param rendered
+   *          the rendered bibliography (null if it is not stored)
+   * @param keys
+   *          the keys of the cite macro
+   * @return the citation label or null if it is not stored
+   */
+  private String getStoredCitation(RenderedBibliography rendered, List<CiteKey> keys) {
+    // only single keys without locator are rendered on index update
+    if (rendered != null && keys.size() == 1 && StringUtils.isBlank(keys.get(0).getLocator())) {
+      return rendered.getCitations().get(keys.get(0).getKey());
+    }
+    return null;
+  }
+
+  /**
+   * Checks if a cite macro is hidden.
+   *
+   * @param cite
+   *          the cite
+   * @return true, if is hidden
+   */
+  private boolean isHidden(MacroMarkerBlock cite) {
+    String hiddenParameter = cite.getParameter(CiteMacroParameters.PARAM_HIDDEN);
+    if (hiddenParameter == null) {
+      return CiteMacroParameters.HIDDEN_DEFAULT;
+    }
+    return Boolean.parseBoolean(hiddenParameter);
+  }
+
+  /**
+   * Checks if the citation labels of all the clusters which are not memoized
+   * are stored.
+   *
+   * @param clusters
+   *          the clusters
+   * @return true, if is stored
+   */
+  private boolean isStored(List<CiteCluster> clusters) {
+    for (CiteCluster cluster : clusters) {
+      if (cluster.blocks == null && cluster.stored == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Render with citeproc the part of the bibliography shown by the scope: the
+   * whole bibliography for CITED, the local entries for PAGE (numbered as in
+   * the whole bibliography) and nothing for HIDDEN where only the citations are
+   * shown.
+   *
+   * @param csl
+   *          the csl
+   * @param scope
+   *          the scope
+   * @param localKeys
+   *          the keys cited by the page
+   * @return the rendered bibliography
+   */
+  private RenderedBibliography makeBibliography(CSL csl, Scope scope, List<String> localKeys) {
+    switch (scope) {
+      case CITED:
+        return new RenderedBibliography(0, csl.makeBibliography());
+      case PAGE:
+        if (localKeys.isEmpty()) {
+          return new RenderedBibliography();
+        }
+        CSLItemData[] selection = new CSLItemData[localKeys.size()];
+        for (int i = 0; i < selection.length; ++i) {
+          selection[i] = new CSLItemDataBuilder().id(localKeys.get(i)).build();
+        }
+        return new RenderedBibliography(0, csl.makeBibliography(SelectionMode.INCLUDE, selection));
+      default:
+        return new RenderedBibliography();
+    }
+  }
+
   /**
    * Make bibliography blocks.
    *
@@ -222,12 +484,34 @@ public class BibliographyMacro extends AbstractMacro<BibliographyMacroParameters
    * @throws MacroExecutionException
    *           the macro execution exception
    */
-  private List<Block> makeBibliographyBlocks(Index index, Bibliography bibliography, List<String> citedKeys, Scope scope)
-      throws MacroExecutionException {
+  private List<Block> makeBibliographyBlocks(Index index, RenderedBibliography bibliography, List<String> citedKeys,
+      Scope scope) throws MacroExecutionException {
     Set<String> lookup = new HashSet<>(citedKeys);
+    Map<String, String> references = index.getEntryReferences();
+
+    List<String> entryIds = bibliography.getEntryIds();
+    List<String> entries = bibliography.getEntries();
+
+    // the cited entries with the reference of their document
+    List<String> contents = new ArrayList<>();
+    List<String> targets = new ArrayList<>();
+    for (int i = 0; i < entryIds.size(); ++i) {
+      if (lookup.contains(entryIds.get(i))) {
+        String reference = references.get(entryIds.get(i));
+        if (reference == null) {
+          // the index has been updated before the references were stored
+          Entry entry = service.findEntry(index, entryIds.get(i));
+          reference = entry == null ? "" : entry.getNode().getDocumentReference().toString();
+        }
+        contents.add(entries.get(i));
+        targets.add(reference);
+      }
+    }
 
-    String[] entryIds = bibliography.getEntryIds();
-    String[] entries = bibliography.getEntries();
+    List<Block> blocks = buildBibliographyBlocks(bibliography, contents, targets, scope);
+    if (blocks != null) {
+      return Collections.<Block> singletonList(new XDOM(blocks));
+    }
 
     StringBuilder builder = new StringBuilder();
     if (scope == Scope.PAGE) {
@@ -236,15 +520,8 @@ public class BibliographyMacro extends AbstractMacro<BibliographyMacroParameters
     if (bibliography.getBibStart() != null) {
       builder.append(bibliography.getBibStart());
     }
-    if (entries != null) {
-      for (int i = 0; i < entryIds.length; ++i) {
-        if (lookup.contains(entryIds[i])) {
-          String content = entries[i];
-          content = content.replaceAll(Constants.ENTRY_TARGET_MARK,
-              service.findEntry(index, entryIds[i]).getNode().getDocumentReference().toString());
-          builder.append(content);
-        }
-      }
+    for (int i = 0; i < contents.size(); ++i) {
+      builder.append(contents.get(i).replaceAll(Constants.ENTRY_TARGET_MARK, targets.get(i)));
     }
     if (bibliography.getBibEnd() != null) {
       builder.append(bibliography.getBibEnd());
@@ -254,66 +531,36 @@ public class BibliographyMacro extends AbstractMacro<BibliographyMacroParameters
   }
 
   /**
-   * Make cite blocks.
+   * Make the citation texts of a cluster with citeproc.
    *
-   * @param index
-   *          the index
    * @param csl
    *          the csl
-   * @param scope
-   *          the scope
-   * @param cite
-   *          the cite
-   * @return the list
-   * @throws MacroExecutionException
-   *           the macro execution exception
+   * @param keys
+   *          the keys of the cluster
+   * @return the texts
    */
-  private List<Block> makeCiteBlocks(Index index, CSL csl, Scope scope, MacroMarkerBlock cite)
-      throws MacroExecutionException {
-
-    // extract hidden parameter
-    boolean hidden;
-    String hiddenParameter = cite.getParameter(CiteMacroParameters.PARAM_HIDDEN);
-    if (hiddenParameter == null) {
-      hidden = CiteMacroParameters.HIDDEN_DEFAULT;
-    } else {
-      hidden = Boolean.parseBoolean(hiddenParameter);
-    }
-
-    if (hidden) {
-      // remove cite block since it is hidden
-      return Collections.<Block> emptyList();
-    }
-
+  private List<String> makeCitationTexts(CSL csl, List<CiteKey> keys) {
     List<CSLCitationItem> citationItems = new ArrayList<>();
-    for (CiteKey ck : CiteKey.decode(cite.getParameter(CiteMacroParameters.PARAM_KEYS))) {
+    for (CiteKey ck : keys) {
       citationItems.add(new CSLCitationItem(ck.getKey(), null, null, null, ck.getLocator(), null, null, null, null,
           null, null, null, null));
     }
-
-    // handle empty keys
-    if (citationItems.isEmpty()) {
-      // remove cite block since it is empty
-      return Collections.<Block> emptyList();
+    List<String> texts = new ArrayList<>();
+    for (Citation citation : csl.makeCitation(new CSLCitation(citationItems.toArray(new CSLCitationItem[0])))) {
+      texts.add(citation.getText());
     }
+    return texts;
+  }
 
-    List<Block> results = new ArrayList<>();
-    try {
-      for (Citation citation : csl.makeCitation(new CSLCitation(citationItems.toArray(new CSLCitationItem[0])))) {
-        String text = citation.getText();
-        if (scope == Scope.PAGE) {
-          // link to current page
-          text = text.replaceAll(Constants.CITE_TARGET_MARK, "");
-        } else {
-          // link to bibliography page
-          text = text.replaceAll(Constants.CITE_TARGET_MARK, index.getBibliographyPage());
-        }
-        results.add(parseContent(text, true));
-      }
-    } catch (IllegalArgumentException ex) {
-      logger.debug("Could not make citations for " + cite.getParameter(CiteMacroParameters.PARAM_KEYS), ex);
-    }
-    return results;
+  /**
+   * Create a context to parse the citeproc output.
+   *
+   * @return the macro transformation context
+   */
+  private MacroTransformationContext newParserContext() {
+    MacroTransformationContext parserContext = new MacroTransformationContext();
+    parserContext.setSyntax(Syntax.XWIKI_2_1);
+    return parserContext;
   }
 
   /**
@@ -328,9 +575,100 @@ public class BibliographyMacro extends AbstractMacro<BibliographyMacroParameters
    *           the macro execution exception
    */
   private XDOM parseContent(String content, boolean inline) throws MacroExecutionException {
-    MacroTransformationContext parserContext = new MacroTransformationContext();
-    parserContext.setSyntax(Syntax.XWIKI_2_1);
-    return macroContentParser.parse(content, parserContext, true, inline);
+    return parseContent(content, inline, newParserContext());
+  }
+
+  /**
+   * Parses the content.
+   *
+   * @param content
+   *          the content
+   * @param inline
+   *          the inline
+   * @param parserContext
+   *          the parser context
+   * @return the xdom
+   * @throws MacroExecutionException
+   *           the macro execution exception
+   */
+  private XDOM parseContent(String content, boolean inline, MacroTransformationContext parserContext)
+      throws MacroExecutionException {
+    // the parsing only depends on the content (the citeproc output)
+    ParsedContentCache cache = service.getParsedContentCache();
+    XDOM xdom = cache.get(content, inline);
+    if (xdom == null) {
+      xdom = macroContentParser.parse(content, parserContext, true, inline);
+      cache.put(content, inline, xdom);
+    }
+    return xdom;
+  }
+
+  /**
+   * Render the clusters which are not memoized in one pass (in document order
+   * with the same CSL object and parser context) and replace the cites by the
+   * result.
+   *
+   * @param index
+   *          the index
+   * @param csl
+   *          the csl (null if all the citation labels are stored)
+   * @param scope
+   *          the scope
+   * @param clusters
+   *          the clusters
+   * @throws MacroExecutionException
+   *           the macro execution exception
+   */
+  private void renderClusters(Index index, CSL csl, Scope scope, List<CiteCluster> clusters)
+      throws MacroExecutionException {
+    MacroTransformationContext parserContext = newParserContext();
+    String target = scope == Scope.PAGE ? "" : index.getBibliographyPage();
+    Map<String, String> targets = Collections.singletonMap(Constants.CITE_TARGET_MARK, target);
+
+    for (CiteCluster cluster : clusters) {
+      if (cluster.blocks == null) {
+        cluster.blocks = new ArrayList<>();
+        boolean rendered = false;
+        try {
+          List<String> texts;
+          if (cluster.stored != null) {
+            texts = Collections.singletonList(cluster.stored);
+          } else {
+            texts = makeCitationTexts(csl, cluster.keys);
+          }
+          for (String text : texts) {
+            // link to current page or to bibliography page
+            List<Block> blocks = CiteprocBlockBuilder.build(text, true, targets);
+            if (blocks != null) {
+              cluster.blocks.add(new XDOM(blocks));
+            } else {
+              text = text.replaceAll(Constants.CITE_TARGET_MARK, target);
+              cluster.blocks.add(parseContent(text, true, parserContext));
+            }
+          }
+          rendered = true;
+        } catch (IllegalArgumentException ex) {
+          logger.debug("Could not make citations for " + cluster.keys, ex);
+        }
+        // a failed rendering is not memoized to be retried on the next rendering
+        if (rendered && cluster.memoKey != null) {
+          service.getCitationMemo().put(cluster.memoKey, cluster.blocks);
+        }
+      }
+
+      // the first cite takes the blocks, the others a copy
+      for (int i = 0; i < cluster.cites.size(); ++i) {
+        MacroMarkerBlock cite = cluster.cites.get(i);
+        List<Block> blocks = cluster.blocks;
+        if (i > 0) {
+          blocks = new ArrayList<>();
+          for (Block block : cluster.blocks) {
+            blocks.add(block.clone());
+          }
+        }
+        cite.getParent().replaceChild(blocks, cite);
+      }
+    }
   }
 
   /*
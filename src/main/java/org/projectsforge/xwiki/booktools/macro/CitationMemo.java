@@ -0,0 +1,280 @@
+package org.projectsforge.xwiki.booktools.macro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.rendering.block.Block;
+
+/**
+ * Memo of the parsed citation blocks shared by the pages of a book. The
+ * numbering and the disambiguation of the citations are computed on the whole
+ * index, so the output of a citation only depends on the index, its keys and
+ * locators, the locale and the scope, unless the style tests the position of
+ * the citation (ibid, subsequent, ...).
+ */
+public class CitationMemo {
+
+  /**
+   * The key of a memoized citation.
+   */
+  public static final class Key {
+
+    /** The index reference. */
+    private final DocumentReference indexReference;
+
+    /** The index version. */
+    private final String indexVersion;
+
+    /** The normalized keys with their locator. */
+    private final List<String> keys;
+
+    /** The locale. */
+    private final String locale;
+
+    /** The scope. */
+    private final Scope scope;
+
+    /** The style. */
+    private final String style;
+
+    /**
+     * Instantiates a new key.
+     *
+     * @param indexReference
+     *          the index document reference
+     * @param indexVersion
+     *          the index document version
+     * @param style
+     *          the style
+     * @param locale
+     *          the locale
+     * @param scope
+     *          the scope
+     * @param citeKeys
+     *          the keys of the cite macro
+     */
+    public Key(DocumentReference indexReference, String indexVersion, String style, String locale, Scope scope,
+        List<CiteKey> citeKeys) {
+      this.indexReference = indexReference;
+      this.indexVersion = indexVersion;
+      this.style = style;
+      this.locale = locale;
+      this.scope = scope;
+      this.keys = new ArrayList<>(citeKeys.size());
+      for (CiteKey citeKey : citeKeys) {
+        keys.add(citeKey.getKey() + '[' + citeKey.getLocator() + ']');
+      }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return Objects.equals(style, other.style) && scope == other.scope
+          && Objects.equals(indexReference, other.indexReference)
+          && Objects.equals(indexVersion, other.indexVersion) && Objects.equals(locale, other.locale)
+          && Objects.equals(keys, other.keys);
+    }
+
+    /**
+     * Gets the index reference.
+     *
+     * @return the index reference
+     */
+    public DocumentReference getIndexReference() {
+      return indexReference;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return Objects.hash(indexReference, indexVersion, style, locale, scope, keys);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return "Key [index=" + indexReference + ", version=" + indexVersion + ", style=" + Objects.hashCode(style) + ", locale="
+          + locale + ", scope=" + scope + ", keys=" + keys + "]";
+    }
+  }
+
+  /** The default maximum number of memoized citations. */
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  /** The blocks by key in access order. */
+  private final LinkedHashMap<Key, List<Block>> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The hits. */
+  private long hits;
+
+  /** The max size. */
+  private final int maxSize;
+
+  /** The misses. */
+  private long misses;
+
+  /**
+   * Tells by style if a style tests the position of the citations. The styles
+   * no longer used by the registry are dropped.
+   */
+  private final Map<String, Boolean> positionDependentStyles = Collections.synchronizedMap(new WeakHashMap<>());
+
+  /**
+   * Instantiates a new citation memo with the default size.
+   */
+  public CitationMemo() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Instantiates a new citation memo.
+   *
+   * @param maxSize
+   *          the maximum number of memoized citations
+   */
+  public CitationMemo(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Copy blocks.
+   *
+   * @param source
+   *          the source
+   * @return the copy
+   */
+  private static List<Block> copy(List<Block> source) {
+    List<Block> result = new ArrayList<>(source.size());
+    for (Block block : source) {
+      result.add(block.clone());
+    }
+    return result;
+  }
+
+  /**
+   * Gets a copy of the memoized blocks.
+   *
+   * @param key
+   *          the key
+   * @return the blocks or null if the citation is not memoized
+   */
+  public List<Block> get(Key key) {
+    List<Block> result;
+    synchronized (this) {
+      result = blocks.get(key);
+      if (result == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+    }
+    return copy(result);
+  }
+
+  /**
+   * Gets the hits.
+   *
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the misses.
+   *
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of memoized citations.
+   *
+   * @return the size
+   */
+  public synchronized int getSize() {
+    return blocks.size();
+  }
+
+  /**
+   * Remove the citations of an index.
+   *
+   * @param indexReference
+   *          the index reference
+   */
+  public synchronized void invalidate(DocumentReference indexReference) {
+    blocks.keySet().removeIf(key -> key.getIndexReference().equals(indexReference));
+  }
+
+  /**
+   * Remove the citations of the indexes of a wiki.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   */
+  public synchronized void invalidate(WikiReference wikiReference) {
+    blocks.keySet().removeIf(key -> key.getIndexReference().getWikiReference().equals(wikiReference));
+  }
+
+  /**
+   * Checks if the citations rendered with a style can be shared between pages.
+   *
+   * @param style
+   *          the style
+   * @return true, if the style does not depend on the position of the
+   *         citations
+   */
+  public boolean isShareable(String style) {
+    return !positionDependentStyles.computeIfAbsent(style, s -> s.contains("position="));
+  }
+
+  /**
+   * Memoize a copy of the blocks.
+   *
+   * @param key
+   *          the key
+   * @param value
+   *          the blocks
+   */
+  public void put(Key key, List<Block> value) {
+    List<Block> copy = copy(value);
+    synchronized (this) {
+      blocks.put(key, copy);
+      if (blocks.size() > maxSize) {
+        Iterator<Key> it = blocks.keySet().iterator();
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+}
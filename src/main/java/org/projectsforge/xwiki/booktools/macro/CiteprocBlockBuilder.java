@@ -0,0 +1,309 @@
+package org.projectsforge.xwiki.booktools.macro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.HorizontalLineBlock;
+import org.xwiki.rendering.block.IdBlock;
+import org.xwiki.rendering.block.LinkBlock;
+import org.xwiki.rendering.block.MacroMarkerBlock;
+import org.xwiki.rendering.block.NewLineBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.listener.reference.DocumentResourceReference;
+
+/**
+ * Builds the blocks of the wiki content produced by citeproc without going
+ * through the wiki syntax parser. Only the subset of the XWiki 2.1 syntax
+ * written by the bundled styles is handled (words, escapes, new lines,
+ * horizontal lines, document links with an anchor and id macros), the blocks
+ * being the ones the parser would produce. The link targets given as marks
+ * are resolved while building so that the output does not have to be
+ * rewritten first. Any other content is left to the parser.
+ */
+public final class CiteprocBlockBuilder {
+
+  /** The pattern of the id macro. */
+  private static final Pattern ID_MACRO = Pattern.compile("\\{\\{id name=\"([^\"~{}]+)\"/\\}\\}");
+
+  /** The pattern of the link parameters. */
+  private static final Pattern LINK_PARAMETERS = Pattern.compile("anchor=\"([^\"~]*)\"");
+
+  /** The characters parsed as special symbols. */
+  private static final String SPECIAL_SYMBOLS = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+
+  /**
+   * The character pairs starting a syntax which is not handled (formatting,
+   * groups, parameters, verbatim, free standing URLs, ...).
+   */
+  private static final String[] UNHANDLED_PAIRS = { "**", "//", "__", "--", "^^", ",,", "##", "((", "(%", "%)", "]]",
+      "{{", "}}", "<<", ">>" };
+
+  /** The content. */
+  private final String content;
+
+  /** The position in the content. */
+  private int pos;
+
+  /** The number of marks resolved. */
+  private int resolved;
+
+  /** The link targets by mark. */
+  private final Map<String, String> targets;
+
+  /**
+   * Instantiates a new citeproc block builder.
+   *
+   * @param content
+   *          the content
+   * @param targets
+   *          the link targets by mark
+   */
+  private CiteprocBlockBuilder(String content, Map<String, String> targets) {
+    this.content = content;
+    this.targets = targets;
+  }
+
+  /**
+   * Builds the blocks of a content produced by citeproc.
+   *
+   * @param content
+   *          the content
+   * @param inline
+   *          tells if the content is inline content
+   * @param targets
+   *          the link targets by mark
+   * @return the blocks or null if the content must be parsed
+   */
+  public static List<Block> build(String content, boolean inline, Map<String, String> targets) {
+    CiteprocBlockBuilder builder = new CiteprocBlockBuilder(content, targets);
+    List<Block> blocks = inline ? builder.buildInline() : builder.buildBlocks();
+    if (blocks == null) {
+      return null;
+    }
+    // a mark outside of a link target is replaced in the whole content
+    int marks = 0;
+    for (String mark : targets.keySet()) {
+      marks += StringUtils.countMatches(content, mark);
+    }
+    return marks == builder.resolved ? blocks : null;
+  }
+
+  /**
+   * Builds the paragraphs of a content made of lines separated by blank lines.
+   *
+   * @return the blocks or null if the content is not handled
+   */
+  private List<Block> buildBlocks() {
+    List<Block> blocks = new ArrayList<>();
+    List<Block> paragraph = new ArrayList<>();
+    for (String line : StringUtils.splitPreserveAllTokens(content, '\n')) {
+      if (line.isEmpty() || "----".equals(line)) {
+        if (!paragraph.isEmpty()) {
+          blocks.add(new ParagraphBlock(paragraph));
+          paragraph = new ArrayList<>();
+        }
+        if (!line.isEmpty()) {
+          blocks.add(new HorizontalLineBlock());
+        }
+        continue;
+      }
+      if (!paragraph.isEmpty()) {
+        paragraph.add(new NewLineBlock());
+      }
+      if (!buildLine(line, paragraph)) {
+        return null;
+      }
+    }
+    if (!paragraph.isEmpty()) {
+      blocks.add(new ParagraphBlock(paragraph));
+    }
+    // a macro alone in a paragraph is a standalone macro
+    for (Block block : blocks) {
+      if (block.getChildren().size() == 1 && block.getChildren().get(0) instanceof MacroMarkerBlock) {
+        return null;
+      }
+    }
+    return blocks;
+  }
+
+  /**
+   * Builds an inline content on a single line.
+   *
+   * @return the blocks or null if the content is not handled
+   */
+  private List<Block> buildInline() {
+    List<Block> blocks = new ArrayList<>();
+    if (content.indexOf('\n') >= 0 || !buildLine(content, blocks)) {
+      return null;
+    }
+    return blocks;
+  }
+
+  /**
+   * Builds the blocks of a line.
+   *
+   * @param line
+   *          the line
+   * @param blocks
+   *          the blocks receiving the result
+   * @return true, if the line is handled
+   */
+  private boolean buildLine(String line, List<Block> blocks) {
+    // lists, headings, tables, quotations, ... start the line
+    char first = line.charAt(0);
+    if (!Character.isLetter(first) && first != '~' && !line.startsWith("[[") && !line.startsWith("{{id ")) {
+      return false;
+    }
+    if (Character.isWhitespace(line.charAt(line.length() - 1))) {
+      return false;
+    }
+
+    for (pos = 0; pos < line.length();) {
+      if (line.startsWith("[[", pos)) {
+        if (!buildLink(line, blocks)) {
+          return false;
+        }
+      } else if (line.startsWith("{{", pos)) {
+        Matcher matcher = ID_MACRO.matcher(line).region(pos, line.length());
+        if (!matcher.lookingAt()) {
+          return false;
+        }
+        String name = matcher.group(1);
+        blocks.add(new MacroMarkerBlock("id", Collections.singletonMap("name", name), null,
+            Collections.<Block> singletonList(new IdBlock(name)), true));
+        pos = matcher.end();
+      } else {
+        // the text ends at the next link or macro which is not escaped
+        int end = pos;
+        while (end < line.length() && !line.startsWith("[[", end) && !line.startsWith("{{", end)) {
+          end += line.charAt(end) == '~' ? 2 : 1;
+        }
+        end = Math.min(end, line.length());
+        if (!buildText(line.substring(pos, end), blocks)) {
+          return false;
+        }
+        pos = end;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Builds a document link at the current position.
+   *
+   * @param line
+   *          the line
+   * @param blocks
+   *          the blocks receiving the result
+   * @return true, if the link is handled
+   */
+  private boolean buildLink(String line, List<Block> blocks) {
+    int end = line.indexOf("]]", pos + 2);
+    if (end < 0) {
+      return false;
+    }
+    String link = line.substring(pos + 2, end);
+    int separator = link.indexOf(">>");
+    if (separator <= 0) {
+      return false;
+    }
+
+    String reference = link.substring(separator + 2);
+    String anchor = null;
+    int parameters = reference.indexOf("||");
+    if (parameters >= 0) {
+      Matcher matcher = LINK_PARAMETERS.matcher(reference.substring(parameters + 2));
+      if (!matcher.matches()) {
+        return false;
+      }
+      anchor = matcher.group(1);
+      reference = reference.substring(0, parameters);
+    }
+    if (targets.containsKey(reference)) {
+      reference = targets.get(reference);
+      resolved++;
+    }
+    if (StringUtils.containsAny(reference, "~[]|<>{}\"\n")) {
+      return false;
+    }
+
+    List<Block> label = new ArrayList<>();
+    if (!buildText(link.substring(0, separator), label)) {
+      return false;
+    }
+
+    DocumentResourceReference resourceReference = new DocumentResourceReference(reference);
+    resourceReference.setTyped(false);
+    if (anchor != null) {
+      resourceReference.setAnchor(anchor);
+    }
+    blocks.add(new LinkBlock(label, resourceReference, false));
+    pos = end + 2;
+    return true;
+  }
+
+  /**
+   * Builds the words, spaces and special symbols of a text.
+   *
+   * @param text
+   *          the text
+   * @param blocks
+   *          the blocks receiving the result
+   * @return true, if the text is handled
+   */
+  private boolean buildText(String text, List<Block> blocks) {
+    if (text.contains("mailto:") || text.indexOf('|') >= 0 || text.indexOf('\t') >= 0 || text.indexOf('\r') >= 0) {
+      return false;
+    }
+    for (String pair : UNHANDLED_PAIRS) {
+      if (text.contains(pair)) {
+        return false;
+      }
+    }
+
+    int word = -1;
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c != ' ' && SPECIAL_SYMBOLS.indexOf(c) < 0) {
+        if (word < 0) {
+          word = i;
+        }
+        continue;
+      }
+      if (word >= 0) {
+        blocks.add(new WordBlock(text.substring(word, i)));
+        word = -1;
+      }
+      if (c == ' ') {
+        blocks.add(new SpaceBlock());
+      } else if (c == '~') {
+        // the escaped character is kept as is
+        if (++i == text.length()) {
+          return false;
+        }
+        char escaped = text.charAt(i);
+        if (SPECIAL_SYMBOLS.indexOf(escaped) >= 0) {
+          blocks.add(new SpecialSymbolBlock(escaped));
+        } else {
+          blocks.add(new WordBlock(String.valueOf(escaped)));
+        }
+      } else {
+        blocks.add(new SpecialSymbolBlock(c));
+      }
+    }
+    if (word >= 0) {
+      blocks.add(new WordBlock(text.substring(word)));
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,184 @@
+package org.projectsforge.xwiki.booktools.macro;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xwiki.rendering.block.XDOM;
+
+/**
+ * Cache of the XDOM parsed from the wiki content produced by citeproc
+ * (bibliographies and citations). The parsing only depends on the content, so
+ * the entries are shared by all the pages. The cache is bounded both in number
+ * of entries and in cumulated content length, the least recently used entries
+ * being dropped first.
+ */
+public class ParsedContentCache {
+
+  /**
+   * The key of a parsed content.
+   */
+  private static final class Key {
+
+    /** The content. */
+    private final String content;
+
+    /** The hash. */
+    private final int hash;
+
+    /** Tells if the content has been parsed as inline content. */
+    private final boolean inline;
+
+    /**
+     * Instantiates a new key.
+     *
+     * @param content
+     *          the content
+     * @param inline
+     *          tells if the content is parsed as inline content
+     */
+    Key(String content, boolean inline) {
+      this.content = content;
+      this.inline = inline;
+      this.hash = 31 * content.hashCode() + (inline ? 1 : 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hash == other.hash && inline == other.inline && content.equals(other.content);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /** The default maximum number of parsed contents. */
+  public static final int DEFAULT_MAX_SIZE = 1024;
+
+  /** The default maximum cumulated length of the parsed contents. */
+  public static final int DEFAULT_MAX_WEIGHT = 4 * 1024 * 1024;
+
+  /** The hits. */
+  private long hits;
+
+  /** The max size. */
+  private final int maxSize;
+
+  /** The max weight. */
+  private final long maxWeight;
+
+  /** The misses. */
+  private long misses;
+
+  /** The parsed contents by key in access order. */
+  private final LinkedHashMap<Key, XDOM> xdoms = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The cumulated length of the cached contents. */
+  private long weight;
+
+  /**
+   * Instantiates a new parsed content cache with the default bounds.
+   */
+  public ParsedContentCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_WEIGHT);
+  }
+
+  /**
+   * Instantiates a new parsed content cache.
+   *
+   * @param maxSize
+   *          the maximum number of parsed contents
+   * @param maxWeight
+   *          the maximum cumulated length of the parsed contents
+   */
+  public ParsedContentCache(int maxSize, long maxWeight) {
+    this.maxSize = maxSize;
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Gets a copy of the XDOM parsed from the content.
+   *
+   * @param content
+   *          the content
+   * @param inline
+   *          tells if the content is parsed as inline content
+   * @return the XDOM or null if the content is not cached
+   */
+  public XDOM get(String content, boolean inline) {
+    XDOM result;
+    synchronized (this) {
+      result = xdoms.get(new Key(content, inline));
+      if (result == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+    }
+    return result.clone();
+  }
+
+  /**
+   * Gets the statistics of the cache.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public synchronized void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "hits", hits);
+    statistics.put(prefix + "misses", misses);
+    statistics.put(prefix + "size", xdoms.size());
+    statistics.put(prefix + "weight", weight);
+  }
+
+  /**
+   * Cache a copy of the XDOM parsed from the content. Contents larger than the
+   * maximum weight are not cached.
+   *
+   * @param content
+   *          the content
+   * @param inline
+   *          tells if the content has been parsed as inline content
+   * @param xdom
+   *          the XDOM
+   */
+  public void put(String content, boolean inline, XDOM xdom) {
+    if (content.length() > maxWeight) {
+      return;
+    }
+    XDOM copy = xdom.clone();
+    synchronized (this) {
+      XDOM previous = xdoms.put(new Key(content, inline), copy);
+      if (previous == null) {
+        weight += content.length();
+      }
+      Iterator<Key> it = xdoms.keySet().iterator();
+      while (xdoms.size() > maxSize || weight > maxWeight) {
+        weight -= it.next().content.length();
+        it.remove();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The indexes citing each entry key, on all the wikis. All the indexes are
+ * registered with the keys stored by their last update when the map is first
+ * used, then again with the keys they cite each time they are updated, so that
+ * the change of an entry only expires the indexes citing it. An entry being
+ * found by its key in the wiki of the index or in its extra sources, the
+ * mapping is done by key and not by entry document.
+ */
+public class CitingIndexMap {
+
+  /** The citing indexes by key. */
+  private final Map<String, Set<DocumentReference>> indexesByKey = new HashMap<>();
+
+  /** The cited keys by index. */
+  private final Map<DocumentReference, Set<String>> keysByIndex = new HashMap<>();
+
+  /**
+   * Gets the indexes citing a key.
+   *
+   * @param key
+   *          the key
+   * @return the citing indexes
+   */
+  public synchronized Set<DocumentReference> getCitingIndexes(String key) {
+    Set<DocumentReference> indexes = indexesByKey.get(key);
+    return indexes == null ? new HashSet<>() : new HashSet<>(indexes);
+  }
+
+  /**
+   * Gets the statistics of the map.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public synchronized void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "indexes", keysByIndex.size());
+    statistics.put(prefix + "keys", indexesByKey.size());
+  }
+
+  /**
+   * Register the keys cited by an index, replacing the ones previously
+   * registered.
+   *
+   * @param indexReference
+   *          the index reference
+   * @param keys
+   *          the cited keys
+   */
+  public synchronized void register(DocumentReference indexReference, Collection<String> keys) {
+    unregister(indexReference);
+    Set<String> indexKeys = new HashSet<>(keys);
+    keysByIndex.put(indexReference, indexKeys);
+    for (String key : indexKeys) {
+      indexesByKey.computeIfAbsent(key, k -> new HashSet<>()).add(indexReference);
+    }
+  }
+
+  /**
+   * Register the keys cited by an index unless the index is already
+   * registered.
+   *
+   * @param indexReference
+   *          the index reference
+   * @param keys
+   *          the cited keys
+   */
+  public synchronized void registerIfAbsent(DocumentReference indexReference, Collection<String> keys) {
+    if (!keysByIndex.containsKey(indexReference)) {
+      register(indexReference, keys);
+    }
+  }
+
+  /**
+   * Unregister an index.
+   *
+   * @param indexReference
+   *          the index reference
+   */
+  public synchronized void unregister(DocumentReference indexReference) {
+    Set<String> keys = keysByIndex.remove(indexReference);
+    if (keys == null) {
+      return;
+    }
+    for (String key : keys) {
+      Set<DocumentReference> indexes = indexesByKey.get(key);
+      indexes.remove(indexReference);
+      if (indexes.isEmpty()) {
+        indexesByKey.remove(key);
+      }
+    }
+  }
+
+}
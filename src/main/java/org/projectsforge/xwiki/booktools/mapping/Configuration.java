@@ -1,13 +1,12 @@
 package org.projectsforge.xwiki.booktools.mapping;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.projectsforge.xwiki.booktools.Constants;
+import org.projectsforge.xwiki.booktools.csl.StyleRegistry;
 import org.projectsforge.xwiki.booktools.macro.Scope;
 import org.projectsforge.xwiki.booktools.mapping.DocumentWalker.Node;
 import org.xwiki.model.EntityType;
@@ -70,7 +69,7 @@ public class Configuration {
     }
     if (StringUtils.isBlank(style)) {
       try {
-        style = IOUtils.toString(getClass().getResource("/csl/" + fieldName + ".csl"), Charset.forName("UTF-8"));
+        style = StyleRegistry.getDefaultStyle(fieldName);
       } catch (IOException ex) {
         node.getService().getLogger().warn("Can not find default for style " + fieldName, ex);
       }
@@ -1,10 +1,15 @@
 package org.projectsforge.xwiki.booktools.mapping;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.projectsforge.xwiki.booktools.Error;
 import org.projectsforge.xwiki.booktools.Utils;
@@ -157,7 +162,11 @@ public class DocumentWalker {
      * @return the children
      */
     public List<Node> getChildren(boolean includeHidden) {
+      if (children == null && !includeHidden) {
+        restoreChildren();
+      }
       if (children == null) {
+        long generation = service.getNodeMetadataCache().getGeneration();
         if ("WebHome".equals(getDocumentReference().getName())) {
           XWikiContext context = service.getContext();
 
@@ -199,6 +208,9 @@ public class DocumentWalker {
           children = Collections.emptyList();
         }
         children = Collections.unmodifiableList(children);
+        if (!includeHidden) {
+          service.getNodeMetadataCache().putChildren(documentReference, generation, getReferences(children));
+        }
       }
       return children;
     }
@@ -221,12 +233,48 @@ public class DocumentWalker {
       return documentReference;
     }
 
+    /**
+     * Gets the linearization of the book of this node. The stored
+     * linearization is not used while changes of the pages of the book are
+     * waiting for the update of the index, the tree being walked instead.
+     *
+     * @return the linearization or null if it is not available
+     */
+    private Linearization getLinearization() {
+      Node root = getRootNode();
+      DocumentReference rootReference = root.getDocumentReference();
+      if (!linearizations.containsKey(rootReference)) {
+        Linearization linearization = null;
+        if (root.isIndex() && !heldBackExpiries.containsKey(rootReference)
+            && !service.hasPendingIndexExpiry(rootReference)) {
+          Index index = root.wrapAsIndex();
+          linearization = index.isExpired() ? null : index.getLinearization();
+        }
+        linearizations.put(rootReference, linearization);
+      }
+      return linearizations.get(rootReference);
+    }
+
+    /**
+     * Gets the version of the document if it is loaded.
+     *
+     * @return the version or null if the document is not loaded
+     */
+    private String getLoadedVersion() {
+      return document == null ? null : document.getVersion();
+    }
+
     /**
      * Gets the next.
      *
      * @return the next
      */
     public Node getNext() {
+      Linearization linearization = getLinearization();
+      int position = linearization == null ? -1 : linearization.getPosition(documentReference.toString());
+      if (position >= 0 && linearization.getNext(position) >= 0) {
+        return getNode(linearization, linearization.getNext(position));
+      }
       if (getChildren().isEmpty()) {
         // no children => get next sibling
         Node current = this;
@@ -246,6 +294,11 @@ public class DocumentWalker {
      * @return the next sibling
      */
     public Node getNextSibling() {
+      Linearization linearization = getLinearization();
+      int position = linearization == null ? -1 : linearization.getPosition(documentReference.toString());
+      if (position > 0) {
+        return getNode(linearization, linearization.getNextSibling(position));
+      }
       if (getParent() != null) {
         List<Node> siblings = getParent().getChildren();
         for (int i = 0; i < siblings.size(); ++i) {
@@ -287,7 +340,20 @@ public class DocumentWalker {
      */
     public Integer getOrder() {
       if (order == null) {
-        order = new Order(this).getOrder();
+        NodeMetadataCache metadataCache = service.getNodeMetadataCache();
+        NodeMetadataCache.Metadata metadata = metadataCache.get(documentReference, getLoadedVersion());
+        if (metadata != null && metadata.getOrder() != null) {
+          order = metadata.getOrder();
+          return order;
+        }
+        long generation = metadataCache.getGeneration();
+        // the document is only read when it is already loaded, the orders of
+        // the siblings being queried at once otherwise
+        order = document == null ? getIndexedOrder(documentReference) : null;
+        if (order == null) {
+          order = new Order(this).getOrder();
+        }
+        metadataCache.putOrder(documentReference, generation, getLoadedVersion(), order);
       }
       return order;
     }
@@ -319,6 +385,12 @@ public class DocumentWalker {
       if (isRootNode()) {
         return null;
       }
+      Linearization linearization = getLinearization();
+      int position = linearization == null ? -1 : linearization.getPosition(documentReference.toString());
+      if (position > 0) {
+        int previous = linearization.getPreviousSibling(position);
+        return getNode(linearization, previous >= 0 ? previous : linearization.getParent(position));
+      }
       if (getParent() != null) {
         Node result = getPreviousSibling();
         if (result != null) {
@@ -337,6 +409,11 @@ public class DocumentWalker {
      * @return the previous sibling
      */
     public Node getPreviousSibling() {
+      Linearization linearization = getLinearization();
+      int position = linearization == null ? -1 : linearization.getPosition(documentReference.toString());
+      if (position > 0) {
+        return getNode(linearization, linearization.getPreviousSibling(position));
+      }
       if (getParent() != null) {
         List<Node> siblings = getParent().getChildren();
         for (int i = 0; i < siblings.size(); ++i) {
@@ -397,6 +474,10 @@ public class DocumentWalker {
      * @return the tree
      */
     public List<Node> getTree() {
+      if (children == null && !restoreChildren()) {
+        // the whole subtree is loaded at once instead of node by node
+        loadSubtree(this);
+      }
       List<Node> results = new ArrayList<>();
       results.add(this);
       for (Node child : getChildren()) {
@@ -466,7 +547,18 @@ public class DocumentWalker {
      * @return true, if is index
      */
     public boolean isIndex() {
-      return getXWikiDocument().getXObject(Index.CLASS_REFERENCE) != null;
+      NodeMetadataCache metadataCache = service.getNodeMetadataCache();
+      if (document == null) {
+        // the document is not loaded only to know it is not an index
+        NodeMetadataCache.Metadata metadata = metadataCache.get(documentReference, null);
+        if (metadata != null && metadata.getIndex() != null) {
+          return metadata.getIndex();
+        }
+      }
+      long generation = metadataCache.getGeneration();
+      boolean index = getXWikiDocument().getXObject(Index.CLASS_REFERENCE) != null;
+      metadataCache.putIndex(documentReference, generation, getLoadedVersion(), index);
+      return index;
     }
 
     /**
@@ -486,7 +578,28 @@ public class DocumentWalker {
      * @return true, if successful
      */
     public boolean moveAsChild(Node child) {
-      if (getChildren().contains(child)) {
+      return moveAsChildren(Collections.singletonList(child));
+    }
+
+    /**
+     * Move nodes with their subtrees as children. All the moves are planned
+     * and checked first, then done one after the other, the moved pages being
+     * put back if one of them can not be moved. Only the nodes of the moved
+     * pages are then forgotten. The moves run in a batch, so that the indexes
+     * of the books are updated and saved once when the batch ends.
+     *
+     * @param newChildren
+     *          the nodes to move
+     * @return true, if all the nodes are children of this node
+     */
+    private boolean moveAsChildren(List<Node> newChildren) {
+      List<Node> moved = new ArrayList<>();
+      for (Node child : newChildren) {
+        if (!getChildren().contains(child)) {
+          moved.add(child);
+        }
+      }
+      if (moved.isEmpty()) {
         return true;
       }
 
@@ -495,70 +608,138 @@ public class DocumentWalker {
         return false;
       }
 
-      if (getDocumentReference().equals(child.getDocumentReference())) {
+      SubtreeMove move = new SubtreeMove();
+      for (Node child : moved) {
+        if (!planMove(getDocumentReference(), child, move)) {
+          return false;
+        }
+      }
+
+      beginBatch();
+      try {
+        // the moved pages leave the books they were in
+        for (DocumentReference source : move.getSources()) {
+          Node sourceRoot = getNode(source).getRootNode();
+          if (sourceRoot.isIndex()) {
+            holdBackIndexExpiry(sourceRoot.getDocumentReference(), source, true);
+          }
+        }
+        boolean succeeded = move.run(service.getContext());
+        // the pages put back have been moved twice
+        for (int i = 0; i < move.getSources().size(); ++i) {
+          invalidate(move.getSources().get(i));
+          invalidate(move.getDestinations().get(i));
+        }
+        if (succeeded) {
+          // the moved nodes now stand for the pages at their new place
+          for (Node child : moved) {
+            child.documentReference = move.getDestinations().get(move.getSources().indexOf(child.documentReference));
+            child.document = null;
+            child.children = null;
+            child.order = null;
+            nodes.put(child.documentReference, child);
+          }
+        }
+        children = null;
+        linearizations.clear();
+        Node root = getRootNode();
+        if (root.isIndex()) {
+          for (DocumentReference destination : move.getDestinations()) {
+            holdBackIndexExpiry(root.getDocumentReference(), destination, false);
+          }
+          pendingRebuilds.add(root.getDocumentReference());
+        }
+        return succeeded;
+      } finally {
+        endBatch();
+      }
+    }
+
+    /**
+     * New X object.
+     *
+     * @param classReference
+     *          the class reference
+     * @return the base object
+     */
+    public BaseObject newXObject(EntityReference classReference) {
+      try {
+        return getXWikiDocument().newXObject(classReference, service.getContext());
+      } catch (XWikiException ex) {
+        service.getLogger().warn("An error occurred", ex);
+        return null;
+      }
+    }
+
+    /**
+     * Plan the move of a node and of its subtree, a page being moved after the
+     * page it becomes the child of.
+     *
+     * @param parentReference
+     *          the document reference of the new parent, once moved
+     * @param child
+     *          the node to move
+     * @param move
+     *          the move receiving the moves of the pages
+     * @return true, if the node and all the nodes of its subtree can be moved
+     */
+    private boolean planMove(DocumentReference parentReference, Node child, SubtreeMove move) {
+      DocumentReference childReference = child.getDocumentReference();
+      if (parentReference.equals(childReference)) {
         return false;
       }
 
       DocumentReference newDocumentReference;
 
-      if ("WebHome".equals(child.getDocumentReference().getName())) {
-        // this reference : a.b.c.WebHome
+      if ("WebHome".equals(childReference.getName())) {
+        if (parentReference.hasParent(childReference.getLastSpaceReference())) {
+          // a space can not be moved in itself
+          return false;
+        }
+        // parent reference : a.b.c.WebHome
         // child reference e.f.WebHome => a.b.c.f.WebHome
         newDocumentReference = new DocumentReference(new EntityReference("WebHome", EntityType.DOCUMENT,
-            new EntityReference(child.getDocumentReference().getParent().getName(), EntityType.SPACE,
-                getDocumentReference().getParent())));
+            new EntityReference(childReference.getParent().getName(), EntityType.SPACE,
+                parentReference.getParent())));
       } else {
-        // this reference : a.b.c.WebHome
+        // parent reference : a.b.c.WebHome
         // child reference : e.f => a.b.c.f
-        newDocumentReference = new DocumentReference(new EntityReference(child.getDocumentReference().getName(),
-            EntityType.DOCUMENT, getDocumentReference().getParent()));
+        newDocumentReference = new DocumentReference(
+            new EntityReference(childReference.getName(), EntityType.DOCUMENT, parentReference.getParent()));
       }
 
-      if (child.canDelete() && authorizationManager.hasAccess(Right.EDIT, service.getContext().getUserReference(),
+      if (!child.canDelete() || !authorizationManager.hasAccess(Right.EDIT, service.getContext().getUserReference(),
           newDocumentReference)) {
-        try {
-          List<Node> oldChildren = child.getChildren();
-          child.getXWikiDocument().rename(newDocumentReference, service.getContext());
-          child.getXWikiDocument().setParentReference(getDocumentReference());
-          child.documentReference = newDocumentReference;
-          child.children = null;
-          child.save();
-
-          // purge nodes to force a clean reload of nodes
-          // TODO : do not systematically remove everything ?
-          nodes.clear();
-
-          // now move all old children as children of the new node
-          for (Node oldChild : oldChildren) {
-            getNode(newDocumentReference).moveAsChild(oldChild);
-          }
-        } catch (XWikiException ex) {
-          logger.warn("An error occurred while adding " + child.getDocumentReference() + " as child of "
-              + getDocumentReference(), ex);
-          return false;
-        }
-      } else {
         return false;
       }
+      move.addMove(childReference, newDocumentReference, parentReference);
 
-      children = null;
+      // the children of the moved page follow it
+      for (Node grandChild : child.getChildren()) {
+        if (!planMove(newDocumentReference, grandChild, move)) {
+          return false;
+        }
+      }
       return true;
     }
 
     /**
-     * New X object.
+     * Restore the children from the node metadata cache.
      *
-     * @param classReference
-     *          the class reference
-     * @return the base object
+     * @return true, if the children were cached
      */
-    public BaseObject newXObject(EntityReference classReference) {
-      try {
-        return getXWikiDocument().newXObject(classReference, service.getContext());
-      } catch (XWikiException ex) {
-        service.getLogger().warn("An error occurred", ex);
-        return null;
+    private boolean restoreChildren() {
+      NodeMetadataCache.Metadata metadata = service.getNodeMetadataCache().get(documentReference, getLoadedVersion());
+      if (metadata == null || metadata.getChildren() == null) {
+        return false;
       }
+      List<Node> cachedChildren = new ArrayList<>();
+      for (DocumentReference childRef : metadata.getChildren()) {
+        cachedChildren.add(getNode(childRef));
+      }
+      // the children have been cached in order
+      children = Collections.unmodifiableList(cachedChildren);
+      return true;
     }
 
     /**
@@ -574,14 +755,18 @@ public class DocumentWalker {
 
     /**
      * Save.
+     *
+     * @return true, if the document has been saved
      */
-    public void save() {
+    public boolean save() {
       XWikiContext context = service.getContext();
       try {
         context.getWiki().saveDocument(getXWikiDocument(), context);
+        return true;
       } catch (XWikiException ex) {
         service.addError(Error.SAVE_DOCUMENT, document.getDocumentReference());
         logger.warn("An error occurred while saving document " + document.getDocumentReference(), ex);
+        return false;
       }
     }
 
@@ -592,24 +777,33 @@ public class DocumentWalker {
      *          the new children
      */
     public void setChildren(List<Node> newChildren) {
-      for (Node child : newChildren) {
-        moveAsChild(child);
-      }
-      List<Node> allChildren = getChildren();
-      for (Node node : allChildren) {
-        node.setOrder(Integer.MAX_VALUE);
-      }
-      int counter = 0;
-      for (Node node : newChildren) {
-        // ensure e have the last node instance due to moveAdChild which can
-        // have invalidated the document
-        getNode(node.getDocumentReference()).setOrder(counter++);
-      }
-      // save changes
-      for (Node node : allChildren) {
-        node.save();
+      // the index of the book is updated once at the end of the batch
+      beginBatch();
+      try {
+        moveAsChildren(newChildren);
+        // the moved nodes stand for the pages at their new place
+        Map<DocumentReference, Integer> newOrders = new HashMap<>();
+        int counter = 0;
+        for (Node node : newChildren) {
+          newOrders.put(node.getDocumentReference(), counter++);
+        }
+        // only the pages whose order changes are saved
+        List<Node> changed = new ArrayList<>();
+        for (Node node : getChildren()) {
+          int newOrder = newOrders.getOrDefault(node.getDocumentReference(), Integer.MAX_VALUE);
+          if (node.getOrder() != newOrder && node.canEdit()) {
+            node.setOrder(newOrder);
+            changed.add(node);
+          }
+        }
+        // save changes
+        for (Node node : changed) {
+          node.save();
+        }
+        children = null;
+      } finally {
+        endBatch();
       }
-      children = null;
     }
 
     /**
@@ -622,6 +816,10 @@ public class DocumentWalker {
       if (canEdit()) {
         new Order(this).setOrder(order);
         this.order = order;
+        Map<DocumentReference, Integer> siblingOrders = orders.get(getOrderGroup(documentReference));
+        if (siblingOrders != null) {
+          siblingOrders.put(documentReference, order);
+        }
       }
     }
 
@@ -741,12 +939,36 @@ public class DocumentWalker {
   /** The logger. */
   private static Logger logger = LoggerFactory.getLogger(DocumentWalker.class);
 
+  /** The depth of the nested batches. */
+  private int batchDepth;
+
   /** The document reference resolver. */
   private DocumentReferenceResolver<String> documentReferenceResolver;
 
+  /**
+   * The changes of the pages of the books held back during the batch by index,
+   * associated to true if the page has been deleted.
+   */
+  private Map<DocumentReference, Map<DocumentReference, Boolean>> heldBackExpiries = new LinkedHashMap<>();
+
+  /** The linearizations of the books by index document reference. */
+  private Map<DocumentReference, Linearization> linearizations = new HashMap<>();
+
   /** The nodes. */
   private Map<DocumentReference, Node> nodes = new HashMap<>();
 
+  /**
+   * The orders of the pages by space listing them as children, the orders of
+   * a space being queried at once.
+   */
+  private Map<String, Map<DocumentReference, Integer>> orders = new HashMap<>();
+
+  /**
+   * The indexes of the books whose pages must be stored again in reading order
+   * when the batch ends, pages having been moved.
+   */
+  private Set<DocumentReference> pendingRebuilds = new LinkedHashSet<>();
+
   /** The query manager. */
   private QueryManager queryManager;
 
@@ -776,6 +998,98 @@ public class DocumentWalker {
     this.authorizationManager = authorizationManager;
   }
 
+  /**
+   * Begin a batch of saves. Until the batch ends, the changes of the pages of
+   * the books saved by this walker do not expire their index, each index being
+   * updated once when the batch ends. The batches can be nested.
+   */
+  public void beginBatch() {
+    batchDepth++;
+  }
+
+  /**
+   * End a batch of saves, updating the indexes of the books whose pages have
+   * been saved or moved during the batch. Each index is saved once, if the
+   * user can edit it, otherwise the changes of its pages are left to the
+   * background update of the index.
+   */
+  public void endBatch() {
+    if (batchDepth == 0 || --batchDepth > 0) {
+      return;
+    }
+    Map<DocumentReference, Map<DocumentReference, Boolean>> expiries = new LinkedHashMap<>(heldBackExpiries);
+    heldBackExpiries.clear();
+    Set<DocumentReference> rebuilds = new LinkedHashSet<>(pendingRebuilds);
+    pendingRebuilds.clear();
+    for (DocumentReference rebuild : rebuilds) {
+      expiries.putIfAbsent(rebuild, Collections.emptyMap());
+    }
+    for (Map.Entry<DocumentReference, Map<DocumentReference, Boolean>> expiry : expiries.entrySet()) {
+      Node indexNode = getNode(expiry.getKey());
+      if (!indexNode.isIndex()) {
+        continue;
+      }
+      if (!indexNode.canEdit()) {
+        for (Map.Entry<DocumentReference, Boolean> page : expiry.getValue().entrySet()) {
+          service.scheduleIndexExpiry(expiry.getKey(), page.getKey(), page.getValue());
+        }
+        continue;
+      }
+      Index index = indexNode.wrapAsIndex();
+      for (Map.Entry<DocumentReference, Boolean> page : expiry.getValue().entrySet()) {
+        index.recordPageUpdate(getNode(page.getKey()), page.getValue());
+      }
+      if (rebuilds.contains(expiry.getKey())) {
+        // pages have been moved, the tree is walked once for all the moves
+        index.rebuildPages();
+      }
+      index.setExpired(true);
+      // the index is updated by DocumentUpdaterListener when it is saved
+      indexNode.save();
+    }
+  }
+
+  /**
+   * Gets the order of a page from the orders of its siblings, querying them
+   * all the first time.
+   *
+   * @param documentReference
+   *          the document reference of the page
+   * @return the order or null if it can not be queried
+   */
+  private Integer getIndexedOrder(DocumentReference documentReference) {
+    String group = getOrderGroup(documentReference);
+    if (group == null) {
+      return null;
+    }
+    Map<DocumentReference, Integer> siblingOrders = orders.get(group);
+    if (siblingOrders == null) {
+      XWikiContext context = service.getContext();
+      siblingOrders = new HashMap<>();
+      try {
+        // the pages of the space and the home pages of its nested spaces
+        for (Object[] row : queryManager
+            .createQuery(String.format(
+                "select doc.fullName, orderObject.%s from Document doc, doc.object(%s) as orderObject where (doc.space = :space and doc.name <> 'WebHome') or (doc.space like :prefix and doc.name = 'WebHome')",
+                Order.FIELD_ORDER, Order.CLASS_REFERENCE_AS_STRING), Query.XWQL)
+            .bindValue("space", group).bindValue("prefix", group + ".%").setWiki(context.getWikiId())
+            .<Object[]> execute()) {
+          DocumentReference reference = documentReferenceResolver.resolve((String) row[0],
+              context.getWikiReference());
+          // like also matches the deeper spaces
+          if (row[1] instanceof Number && group.equals(getOrderGroup(reference))) {
+            siblingOrders.put(reference, ((Number) row[1]).intValue());
+          }
+        }
+      } catch (QueryException ex) {
+        logger.warn("An error occurred while querying the orders of the children of " + group, ex);
+        return null;
+      }
+      orders.put(group, siblingOrders);
+    }
+    return siblingOrders.getOrDefault(documentReference, Integer.MAX_VALUE);
+  }
+
   /**
    * Gets the node.
    *
@@ -796,6 +1110,197 @@ public class DocumentWalker {
     return node;
   }
 
+  /**
+   * Gets the space listing a page as child (see {@link Node#getChildren()}):
+   * its space for a page, the parent space for a space home page.
+   *
+   * @param documentReference
+   *          the document reference of the page
+   * @return the space or null if the page is a top level space home page
+   */
+  private String getOrderGroup(DocumentReference documentReference) {
+    EntityReference space = documentReference.getLastSpaceReference();
+    if ("WebHome".equals(documentReference.getName())) {
+      space = space.getParent();
+      if (space == null || space.getType() != EntityType.SPACE) {
+        return null;
+      }
+    }
+    return Utils.LOCAL_REFERENCE_SERIALIZER.serialize(space);
+  }
+
+  /**
+   * Gets the document references of nodes.
+   *
+   * @param nodes
+   *          the nodes
+   * @return the document references
+   */
+  private static List<DocumentReference> getReferences(List<Node> nodes) {
+    List<DocumentReference> references = new ArrayList<>(nodes.size());
+    for (Node node : nodes) {
+      references.add(node.getDocumentReference());
+    }
+    return references;
+  }
+
+  /**
+   * Hold back the expiry of an index after the change of a page of its book
+   * if a batch is running.
+   *
+   * @param indexReference
+   *          the reference of the index of the book
+   * @param pageReference
+   *          the page reference
+   * @param deleted
+   *          tells if the page has been deleted
+   * @return true, if the expiry is held back until the end of the batch
+   */
+  public boolean holdBackIndexExpiry(DocumentReference indexReference, DocumentReference pageReference,
+      boolean deleted) {
+    if (batchDepth == 0) {
+      return false;
+    }
+    heldBackExpiries.computeIfAbsent(indexReference, r -> new LinkedHashMap<>()).merge(pageReference, deleted,
+        Boolean::logicalOr);
+    return true;
+  }
+
+  /**
+   * Forget what is known about a page which has been created, updated or
+   * deleted: its node, its order and the children of the space home pages
+   * above it.
+   *
+   * @param documentReference
+   *          the document reference of the changed page
+   */
+  public void invalidate(DocumentReference documentReference) {
+    nodes.remove(documentReference);
+    String group = getOrderGroup(documentReference);
+    if (group != null) {
+      orders.remove(group);
+    }
+    linearizations.clear();
+    EntityReference space = documentReference.getLastSpaceReference();
+    while (space != null && space.getType() == EntityType.SPACE) {
+      Node node = nodes.get(new DocumentReference(new EntityReference("WebHome", EntityType.DOCUMENT, space)));
+      if (node != null) {
+        node.children = null;
+      }
+      space = space.getParent();
+    }
+  }
+
+  /**
+   * Load the children and the order of the nodes of the subtree of a node in a
+   * few queries instead of querying the children and loading the document of
+   * each node. The children are the ones {@link Node#getChildren()} would
+   * find. The nodes whose children are already known are kept as is.
+   *
+   * @param root
+   *          the root of the subtree
+   */
+  private void loadSubtree(Node root) {
+    if (!"WebHome".equals(root.getDocumentReference().getName())) {
+      return;
+    }
+    XWikiContext context = service.getContext();
+    NodeMetadataCache metadataCache = service.getNodeMetadataCache();
+    long generation = metadataCache.getGeneration();
+    String rootSpace = Utils.LOCAL_REFERENCE_SERIALIZER.serialize(root.getDocumentReference().getLastSpaceReference());
+    String prefix = rootSpace + ".";
+
+    // the children of each space of the subtree and the orders of the pages
+    Map<String, List<String>> childrenBySpace = new HashMap<>();
+    Map<DocumentReference, Integer> orders = new HashMap<>();
+    try {
+      // the children which are not nested spaces
+      for (Object[] row : queryManager
+          .createQuery(
+              "select doc.fullName, doc.space from Document doc where doc.name <> 'WebHome' and (doc.space = :space or doc.space like :prefix) and doc.hidden = false",
+              Query.XWQL)
+          .bindValue("space", rootSpace).bindValue("prefix", prefix + "%").setWiki(context.getWikiId())
+          .<Object[]> execute()) {
+        String space = (String) row[1];
+        // like also matches the spaces whose name contains wildcards
+        if (space.equals(rootSpace) || space.startsWith(prefix)) {
+          childrenBySpace.computeIfAbsent(space, s -> new ArrayList<>()).add((String) row[0]);
+        }
+      }
+      // the children which are nested spaces
+      for (Object[] row : queryManager
+          .createQuery(
+              "select space.reference, space.parent from Space space where space.reference like :prefix and space.hidden = false",
+              Query.XWQL)
+          .bindValue("prefix", prefix + "%").setWiki(context.getWikiId()).<Object[]> execute()) {
+        String space = (String) row[0];
+        if (space.startsWith(prefix)) {
+          childrenBySpace.computeIfAbsent((String) row[1], s -> new ArrayList<>()).add(space + ".WebHome");
+        }
+      }
+      // the orders
+      for (Object[] row : queryManager
+          .createQuery(String.format(
+              "select doc.fullName, orderObject.%s from Document doc, doc.object(%s) as orderObject where (doc.space = :space or doc.space like :prefix)",
+              Order.FIELD_ORDER, Order.CLASS_REFERENCE_AS_STRING), Query.XWQL)
+          .bindValue("space", rootSpace).bindValue("prefix", prefix + "%").setWiki(context.getWikiId())
+          .<Object[]> execute()) {
+        if (row[1] instanceof Number) {
+          orders.put(documentReferenceResolver.resolve((String) row[0], context.getWikiReference()),
+              ((Number) row[1]).intValue());
+        }
+      }
+    } catch (QueryException ex) {
+      // the nodes are loaded one by one
+      logger.warn("An error occurred while querying the subtree of " + root.getDocumentReference(), ex);
+      return;
+    }
+
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.poll();
+      if (node.children == null) {
+        List<Node> children = new ArrayList<>();
+        if ("WebHome".equals(node.getDocumentReference().getName())) {
+          String space = Utils.LOCAL_REFERENCE_SERIALIZER
+              .serialize(node.getDocumentReference().getLastSpaceReference());
+          for (String child : childrenBySpace.getOrDefault(space, Collections.emptyList())) {
+            DocumentReference childRef = documentReferenceResolver.resolve(child, context.getWikiReference());
+            if (!node.getDocumentReference().equals(childRef)) {
+              Node childNode = getNode(childRef);
+              if (childNode.order == null) {
+                childNode.order = orders.getOrDefault(childRef, Integer.MAX_VALUE);
+                metadataCache.putOrder(childRef, generation, null, childNode.order);
+              }
+              children.add(childNode);
+            }
+          }
+          Collections.sort(children);
+        }
+        node.children = Collections.unmodifiableList(children);
+        metadataCache.putChildren(node.getDocumentReference(), generation, getReferences(children));
+      }
+      pending.addAll(node.children);
+    }
+  }
+
+  /**
+   * Gets the node of a page of a linearization.
+   *
+   * @param linearization
+   *          the linearization
+   * @param position
+   *          the position of the page
+   * @return the node or null if the position is -1
+   */
+  private Node getNode(Linearization linearization, int position) {
+    if (position < 0) {
+      return null;
+    }
+    return getNode(documentReferenceResolver.resolve(linearization.getReference(position)));
+  }
+
   /**
    * Wrap node.
    *
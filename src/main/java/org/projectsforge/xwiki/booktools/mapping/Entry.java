@@ -1,6 +1,6 @@
 package org.projectsforge.xwiki.booktools.mapping;
 
-import java.io.IOException;
+import java.util.Collections;
 
 import org.projectsforge.xwiki.booktools.Constants;
 import org.projectsforge.xwiki.booktools.Error;
@@ -20,11 +20,8 @@ import org.xwiki.model.reference.EntityReference;
 
 import com.xpn.xwiki.objects.BaseObject;
 
-import de.undercouch.citeproc.CSL;
-import de.undercouch.citeproc.ListItemDataProvider;
 import de.undercouch.citeproc.csl.CSLItemData;
 import de.undercouch.citeproc.csl.CSLItemDataBuilder;
-import de.undercouch.citeproc.output.Bibliography;
 
 /**
  * The Class Entry.
@@ -130,10 +127,29 @@ public class Entry {
     return xobject;
   }
 
+  /**
+   * Sets the entry rendered with the entry style.
+   *
+   * @param rendered
+   *          the output of citeproc for the entry
+   * @return true, if the stored rendering has changed
+   */
+  public boolean setRendered(String rendered) {
+    String value = rendered.trim().replaceAll(Constants.ENTRY_TARGET_MARK, node.getDocumentReference().toString());
+    if (value.equals(xobject.getLargeStringValue(FIELD_RENDERED))) {
+      return false;
+    }
+    xobject.setLargeStringValue(FIELD_RENDERED, value);
+    return true;
+  }
+
   /**
    * Update some fields (triggered when the document is saved through events).
+   *
+   * @return true, if the stored rendering has changed
    */
-  public void update() {
+  public boolean update() {
+    boolean changed = false;
     try {
       CSLItemDataBuilder builder = new CSLItemDataBuilder();
 
@@ -160,25 +176,25 @@ public class Entry {
       CSLItemData itemData = builder.build();
       xobject.setLargeStringValue(FIELD_CSL_ITEM_DATA, Utils.serializeCSLItemData(itemData));
 
-      CSL csl = new CSL(new ListItemDataProvider(itemData),
-          node.getService().getDefaultConfiguration(node.getDocumentReference().getWikiReference())
-              .getBibliographyStyle(Configuration.FIELD_BIBLIOGRAPHY_ENTRY_STYLE));
-      csl.registerCitationItems(itemData.getId());
-      csl.setOutputFormat("text");
-      Bibliography bibiography = csl.makeBibliography();
-      String rendered = bibiography.getEntries()[0].trim();
-      rendered = rendered.replaceAll(Constants.ENTRY_TARGET_MARK, node.getDocumentReference().toString());
+      // the rendering is skipped when it has been done by a batch
+      if (node.getService().getContext().get(Constants.CONTEXT_ENTRY_RENDERED) == null) {
+        String rendered = node.getService()
+            .renderEntries(node.getService().getBibliographyStyle(node.getDocumentReference().getWikiReference(),
+                Configuration.FIELD_BIBLIOGRAPHY_ENTRY_STYLE), null, Collections.singletonList(itemData))
+            .get(itemData.getId());
+        if (rendered == null) {
+          return false;
+        }
+        changed = setRendered(rendered);
+      }
 
       node.getXWikiDocument().setTitle(itemData.getId());
-      xobject.setLargeStringValue(FIELD_RENDERED, rendered);
       xobject.setLargeStringValue(FIELD_BIBLATEX, BibLaTeXExporter.export(itemData));
-    } catch (IOException ex) {
-      node.getService().addError(Error.CSL, node.getDocumentReference(), xobject, ex.getMessage());
-      logger.warn("Can not format title", ex);
     } catch (Exception ex) {
       node.getService().addError(Error.BUILD_CSLDATAITEM, node.getDocumentReference(), xobject, ex.getMessage());
       logger.warn("An error occurred", ex);
     }
+    return changed;
   }
 
 }
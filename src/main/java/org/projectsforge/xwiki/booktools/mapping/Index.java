@@ -2,22 +2,30 @@ package org.projectsforge.xwiki.booktools.mapping;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 import org.projectsforge.xwiki.booktools.Constants;
 import org.projectsforge.xwiki.booktools.Utils;
+import org.projectsforge.xwiki.booktools.csl.RenderedBibliography;
 import org.projectsforge.xwiki.booktools.macro.Scope;
 import org.projectsforge.xwiki.booktools.mapping.DocumentWalker.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.model.EntityType;
-import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 
+import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.classes.BaseClass;
 
 import de.undercouch.citeproc.csl.CSLItemData;
 
@@ -39,12 +47,27 @@ public class Index {
   /** The Constant FIELD_ENTRIES. */
   public static final String FIELD_ENTRIES = "entries";
 
+  /** The Constant FIELD_ENTRIES_VERSION. */
+  public static final String FIELD_ENTRIES_VERSION = "entriesVersion";
+
+  /** The Constant FIELD_ENTRY_REFERENCES. */
+  public static final String FIELD_ENTRY_REFERENCES = "entryReferences";
+
   /** The Constant FIELD_EXPIRED. */
   public static final String FIELD_EXPIRED = "expired";
 
   /** The Constant FIELD_KEYS. */
   public static final String FIELD_KEYS = "keys";
 
+  /** The Constant FIELD_NUMBERING. */
+  public static final String FIELD_NUMBERING = "numbering";
+
+  /** The Constant FIELD_PAGES. */
+  public static final String FIELD_PAGES = "pages";
+
+  /** The Constant FIELD_RENDERED. */
+  public static final String FIELD_RENDERED = "rendered";
+
   /** The logger. */
   private static Logger logger = LoggerFactory.getLogger(Index.class);
 
@@ -54,6 +77,23 @@ public class Index {
   /** The xobject. */
   private BaseObject xobject;
 
+  /**
+   * Add the fields missing in the index class.
+   *
+   * @param xclass
+   *          the index class
+   * @return true, if the class has been modified
+   */
+  public static boolean ensureClassFields(BaseClass xclass) {
+    boolean modified = false;
+    modified |= xclass.addTextField(FIELD_ENTRIES_VERSION, "Entries version", 30);
+    modified |= xclass.addTextAreaField(FIELD_ENTRY_REFERENCES, "Entry references", 80, 10);
+    modified |= xclass.addTextAreaField(FIELD_NUMBERING, "Numbering", 80, 10);
+    modified |= xclass.addTextAreaField(FIELD_PAGES, "Pages", 80, 10);
+    modified |= xclass.addTextAreaField(FIELD_RENDERED, "Rendered bibliography", 80, 10);
+    return modified;
+  }
+
   /**
    * Instantiates a new index.
    *
@@ -65,6 +105,37 @@ public class Index {
     this.xobject = node.getXObject(CLASS_REFERENCE, true);
   }
 
+  /**
+   * Collect the pages of the tree of this index (included) in tree order.
+   *
+   * @return the pages
+   */
+  private List<IndexedPage> collectPages() {
+    List<IndexedPage> pages = new ArrayList<>();
+    Map<Node, Integer> depths = new HashMap<>();
+    depths.put(node, 0);
+    for (Node page : node.getTree()) {
+      int depth = depths.get(page);
+      page.getChildren().forEach(child -> depths.put(child, depth + 1));
+      LocalIndex localIndex = page.wrapAsLocalIndex(this);
+      pages.add(new IndexedPage(page.getDocumentReference().toString(), page.getOrder(), depth, localIndex.getKeys(),
+          localIndex.getIsBibliographyPage()));
+    }
+    return pages;
+  }
+
+  /**
+   * Drop stored entries so that the next update loads them again.
+   *
+   * @param keys
+   *          the keys of the entries
+   */
+  public void dropEntries(Collection<String> keys) {
+    if (!keys.isEmpty()) {
+      xobject.setLargeStringValue(FIELD_ENTRIES, getStoredEntries().serializeWithout(keys));
+    }
+  }
+
   /**
    * Gets the bibliography page.
    *
@@ -85,8 +156,8 @@ public class Index {
       style = xobject.getLargeStringValue(Configuration.FIELD_BIBLIOGRAPHY_MAIN_STYLE);
     }
     if (StringUtils.isBlank(style)) {
-      style = node.getService().getDefaultConfiguration(node.getDocumentReference().getWikiReference())
-          .getBibliographyStyle(Configuration.FIELD_BIBLIOGRAPHY_MAIN_STYLE);
+      style = node.getService().getBibliographyStyle(node.getDocumentReference().getWikiReference(),
+          Configuration.FIELD_BIBLIOGRAPHY_MAIN_STYLE);
     }
     if (StringUtils.isBlank(style)) {
       style = "ieee";
@@ -95,12 +166,48 @@ public class Index {
   }
 
   /**
-   * Gets the entries.
+   * Gets the default locale of the wiki of the index, whose bibliography gives
+   * the numbering of the entries.
+   *
+   * @return the default locale or null if the wiki has none
+   */
+  private String getDefaultLocale() {
+    XWikiContext context = node.getService().getContext();
+    Locale locale = context.getWiki().getDefaultLocale(context);
+    return locale == null ? null : locale.toString();
+  }
+
+  /**
+   * Gets the stored entries of some keys, only these entries being decoded.
    *
-   * @return the entries
+   * @param keys
+   *          the keys in the wanted order
+   * @return the entries which are stored
    */
-  public List<CSLItemData> getEntries() {
-    return Utils.deserializeCSLItemDatas(xobject.getLargeStringValue(FIELD_ENTRIES));
+  public List<CSLItemData> getEntries(Collection<String> keys) {
+    return getStoredEntries().get(keys);
+  }
+
+  /**
+   * Gets the references of the entry documents by key, as resolved by the last
+   * update.
+   *
+   * @return the entry references (empty if the index has not been updated
+   *         since they are stored)
+   */
+  public Map<String, String> getEntryReferences() {
+    return Utils.deserializeEntryReferences(node.getService(), xobject.getLargeStringValue(FIELD_ENTRY_REFERENCES));
+  }
+
+  /**
+   * Gets the version of the entries the index is built from: the stored
+   * entries are valid as long as no entry has been modified and the sources
+   * are the same.
+   *
+   * @return the entries version
+   */
+  private String getEntriesVersion() {
+    return node.getService().getEntriesVersion() + "|" + String.join("|", getExtraWikiSources());
   }
 
   /**
@@ -137,6 +244,87 @@ public class Index {
     return node;
   }
 
+  /**
+   * Gets the pages of the book in reading order as stored by the last update
+   * or by the last move of pages.
+   *
+   * @return the linearization or null if the tree has changed since
+   */
+  public Linearization getLinearization() {
+    List<IndexedPage> pages = getPages();
+    if (!Linearization.isValid(pages)
+        || !pages.get(0).getReference().equals(node.getDocumentReference().toString())) {
+      return null;
+    }
+    return new Linearization(pages);
+  }
+
+  /**
+   * Gets the citation numbers by key computed by the last update: the position
+   * of the entries in the bibliography, starting at 1.
+   *
+   * @return the numbering (empty if the index has not been updated since it is
+   *         stored)
+   */
+  public Map<String, Integer> getNumbering() {
+    return Utils.deserializeNumbering(node.getService(), xobject.getLargeStringValue(FIELD_NUMBERING));
+  }
+
+  /**
+   * Gets the pages of the tree as seen by the last update, patched since then
+   * by {@link #recordPageUpdate(Node, boolean)}.
+   *
+   * @return the pages in tree order (empty if the tree must be walked again)
+   */
+  public List<IndexedPage> getPages() {
+    return Utils.deserializeIndexedPages(node.getService(), xobject.getLargeStringValue(FIELD_PAGES));
+  }
+
+  /**
+   * Gets the bibliography rendered for a locale. The bibliography is rendered
+   * by the last update for the default locale of the wiki and the locale of the
+   * update, and on first view for the other locales.
+   *
+   * @param locale
+   *          the locale
+   * @return the rendered bibliography or null if it is not available
+   */
+  public RenderedBibliography getRenderedBibliography(String locale) {
+    RenderedBibliography rendered = Utils
+        .deserializeRenderedBibliographies(node.getService(), xobject.getLargeStringValue(FIELD_RENDERED))
+        .get(locale);
+    if (rendered != null && rendered.getStyleHash() == getBibliographyStyle().hashCode()) {
+      return rendered;
+    }
+    if (isExpired()) {
+      // the stored entries may be stale
+      return null;
+    }
+    // not rendered by the update or rendered with another style
+    return node.getService().getRenderedBibliography(this, locale);
+  }
+
+  /**
+   * Gets the locales for which the bibliography is rendered on update: the
+   * default locale of the wiki, which gives the numbering, and the locale of
+   * the update. The other locales are rendered on first view, out of the lock
+   * of the index.
+   *
+   * @return the locales, the default locale of the wiki first
+   */
+  private Set<String> getRenderingLocales() {
+    Set<String> locales = new LinkedHashSet<>();
+    String defaultLocale = getDefaultLocale();
+    if (defaultLocale != null) {
+      locales.add(defaultLocale);
+    }
+    XWikiContext context = node.getService().getContext();
+    if (context.getLocale() != null) {
+      locales.add(context.getLocale().toString());
+    }
+    return locales;
+  }
+
   /**
    * Gets the scope.
    *
@@ -154,6 +342,24 @@ public class Index {
     return scope;
   }
 
+  /**
+   * Gets the entries stored by the last update, decoded on access.
+   *
+   * @return the stored entries
+   */
+  public IndexEntries getStoredEntries() {
+    return new IndexEntries(xobject.getLargeStringValue(FIELD_ENTRIES));
+  }
+
+  /**
+   * Gets the version of the index document.
+   *
+   * @return the version
+   */
+  public String getVersion() {
+    return node.getXWikiDocument().getVersion();
+  }
+
   /**
    * Checks if is expired.
    *
@@ -163,6 +369,59 @@ public class Index {
     return xobject.getIntValue(FIELD_EXPIRED, 0) == 1;
   }
 
+  /**
+   * Walk the tree again to store its pages, after pages have been moved.
+   */
+  public void rebuildPages() {
+    setPages(collectPages());
+  }
+
+  /**
+   * Record the change of a page of the tree so that the next update does not
+   * have to walk the tree again. Only the change of the local index of a known
+   * page is recorded : the pages are dropped when a page is added, removed,
+   * hidden or moved so that the next update walks the tree.
+   *
+   * @param page
+   *          the page saved or deleted
+   * @param deleted
+   *          tells if the page has been deleted
+   * @return true, if the index has been modified
+   */
+  public boolean recordPageUpdate(Node page, boolean deleted) {
+    List<IndexedPage> pages = getPages();
+    if (pages.isEmpty()) {
+      // the tree is walked by the next update anyway
+      return false;
+    }
+
+    String reference = page.getDocumentReference().toString();
+    IndexedPage indexedPage = null;
+    for (IndexedPage candidate : pages) {
+      if (candidate.getReference().equals(reference)) {
+        indexedPage = candidate;
+        break;
+      }
+    }
+    // a page changed then deleted has no document anymore
+    if (indexedPage == null || deleted || page.getXWikiDocument().isNew()
+        || Boolean.TRUE.equals(page.getXWikiDocument().isHidden())
+        || indexedPage.getOrder() != page.getOrder()) {
+      setPages(Collections.emptyList());
+      return true;
+    }
+
+    LocalIndex localIndex = page.wrapAsLocalIndex(this);
+    if (indexedPage.getKeys().equals(localIndex.getKeys())
+        && indexedPage.isBibliographyPage() == localIndex.getIsBibliographyPage()) {
+      return false;
+    }
+    indexedPage.setKeys(localIndex.getKeys());
+    indexedPage.setBibliographyPage(localIndex.getIsBibliographyPage());
+    setPages(pages);
+    return true;
+  }
+
   /**
    * Sets the bibliography page.
    *
@@ -180,7 +439,17 @@ public class Index {
    *          the new CSL entries
    */
   public void setCSLEntries(List<CSLItemData> entries) {
-    xobject.setLargeStringValue(FIELD_ENTRIES, Utils.serializedCSLItemDatas(entries));
+    xobject.setLargeStringValue(FIELD_ENTRIES, IndexEntries.serialize(entries));
+  }
+
+  /**
+   * Sets the references of the entry documents by key.
+   *
+   * @param references
+   *          the references
+   */
+  public void setEntryReferences(Map<String, String> references) {
+    xobject.setLargeStringValue(FIELD_ENTRY_REFERENCES, Utils.serializeEntryReferences(node.getService(), references));
   }
 
   /**
@@ -191,6 +460,10 @@ public class Index {
    */
   public void setExpired(boolean expired) {
     xobject.setIntValue(FIELD_EXPIRED, expired ? 1 : 0);
+    if (expired) {
+      // cached renderings of the index are no more valid
+      node.getService().invalidateIndexCaches(node.getDocumentReference());
+    }
   }
 
   /**
@@ -203,6 +476,36 @@ public class Index {
     xobject.setLargeStringValue(FIELD_KEYS, Utils.serializeKeys(node.getService(), keys));
   }
 
+  /**
+   * Sets the citation numbers by key.
+   *
+   * @param numbering
+   *          the numbering
+   */
+  public void setNumbering(Map<String, Integer> numbering) {
+    xobject.setLargeStringValue(FIELD_NUMBERING, Utils.serializeNumbering(node.getService(), numbering));
+  }
+
+  /**
+   * Sets the pages of the tree.
+   *
+   * @param pages
+   *          the pages in tree order
+   */
+  private void setPages(List<IndexedPage> pages) {
+    xobject.setLargeStringValue(FIELD_PAGES, Utils.serializeIndexedPages(node.getService(), pages));
+  }
+
+  /**
+   * Sets the rendered bibliographies by locale.
+   *
+   * @param rendered
+   *          the rendered bibliographies
+   */
+  public void setRenderedBibliographies(Map<String, RenderedBibliography> rendered) {
+    xobject.setLargeStringValue(FIELD_RENDERED, Utils.serializeRenderedBibliographies(node.getService(), rendered));
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -215,55 +518,127 @@ public class Index {
 
   /**
    * Update index if necessary.
+   *
+   * @return true, if the index is up to date (false if the update has been
+   *         given up while another update of the index was running, the index
+   *         being left expired with its stored data)
    */
-  public void update() {
+  public boolean update() {
     if (!isExpired()) {
-      return;
+      return true;
     }
 
-    // ensure only one update is done at a time
-    synchronized (Index.class) {
-      // collect all page tree from this index (included)
-      List<Node> tree = node.getTree();
+    // ensure only one update of this index is done at a time, the other
+    // indexes being updated in parallel
+    IndexLocks locks = node.getService().getIndexLocks();
+    if (!locks.lock(node.getDocumentReference())) {
+      logger.warn("Timeout while waiting for the update of {}, the stale index is used", this);
+      return false;
+    }
+    try {
+      // the pages are walked again only if the tree has changed since the
+      // last update, and the entries are loaded again only if they have changed
+      String entriesVersion = getEntriesVersion();
+      List<IndexedPage> pages = getPages();
+      boolean incremental = !pages.isEmpty() && entriesVersion.equals(xobject.getStringValue(FIELD_ENTRIES_VERSION))
+          && pages.get(0).getReference().equals(node.getDocumentReference().toString())
+          && pages.get(0).getDepth() == 0;
+      if (incremental) {
+        // the local index of the index page is saved with the index itself
+        LocalIndex localIndex = node.wrapAsLocalIndex(this);
+        pages.get(0).setKeys(localIndex.getKeys());
+        pages.get(0).setBibliographyPage(localIndex.getIsBibliographyPage());
+      } else {
+        // collect all page tree from this index (included)
+        pages = collectPages();
+      }
+      setPages(pages);
+      xobject.setStringValue(FIELD_ENTRIES_VERSION, entriesVersion);
 
       // collect informations
       List<String> keys = new ArrayList<>();
       Set<String> keysSet = new HashSet<>();
-      DocumentReference bibliographyPage = null;
+      String bibliographyPage = null;
 
-      for (Node page : tree) {
-        LocalIndex localIndex = page.wrapAsLocalIndex(this);
+      for (IndexedPage page : pages) {
         // collect cited keys in order
-        for (String key : localIndex.getKeys()) {
+        for (String key : page.getKeys()) {
           if (!keysSet.contains(key)) {
             keys.add(key);
             keysSet.add(key);
           }
         }
-        if (localIndex.getIsBibliographyPage()) {
+        if (page.isBibliographyPage()) {
           if (bibliographyPage != null) {
-            logger.warn("Multiple bibliography page found {} : {}", this, localIndex);
+            logger.warn("Multiple bibliography page found {} : {}", this, page.getReference());
           }
-          bibliographyPage = page.getDocumentReference();
+          bibliographyPage = page.getReference();
         }
       }
       setKeys(keys);
+      // the changes of the cited entries expire this index
+      node.getService().getCitingIndexMap().register(node.getDocumentReference(), keys);
 
-      setBibliographyPage(bibliographyPage == null ? "" : bibliographyPage.toString());
+      setBibliographyPage(bibliographyPage == null ? "" : bibliographyPage);
 
-      // load entries
+      // load entries, reusing the ones loaded by the last update
+      IndexEntries loadedEntries = new IndexEntries(null);
+      Map<String, String> loadedReferences = Collections.emptyMap();
+      if (incremental) {
+        loadedEntries = getStoredEntries();
+        loadedReferences = getEntryReferences();
+      }
       List<CSLItemData> entries = new ArrayList<>();
+      Map<String, String> references = new HashMap<>();
       for (String key : keys) {
-        Entry entry = node.getService().findEntry(this, key);
-        if (entry != null) {
-          entries.add(entry.getCSLItemData());
+        CSLItemData itemData = loadedEntries.get(key);
+        String reference = loadedReferences.get(key);
+        if (itemData == null || reference == null) {
+          Entry entry = node.getService().findEntry(this, key);
+          if (entry == null) {
+            continue;
+          }
+          itemData = entry.getCSLItemData();
+          reference = entry.getNode().getDocumentReference().toString();
         }
+        entries.add(itemData);
+        // the bibliography is rendered with the ids of the entries
+        references.put(itemData.getId(), reference);
       }
       // save all entries for fast access
       setCSLEntries(entries);
+      setEntryReferences(references);
+
+      // render the bibliography of the main locales so that views only have
+      // to substitute the stored output
+      String style = getBibliographyStyle();
+      Map<String, RenderedBibliography> rendered = new HashMap<>();
+      for (String locale : getRenderingLocales()) {
+        RenderedBibliography bibliography = node.getService().renderBibliography(style, locale, entries);
+        if (bibliography != null) {
+          rendered.put(locale, bibliography);
+        }
+      }
+      setRenderedBibliographies(rendered);
+
+      // the entries are numbered once for all the views, in the order of the
+      // bibliography of the default locale since a style may sort with the
+      // collation or the terms of the locale
+      Map<String, Integer> numbering = new HashMap<>();
+      RenderedBibliography numbered = rendered.get(getDefaultLocale());
+      if (numbered != null) {
+        List<String> entryIds = numbered.getEntryIds();
+        for (int i = 0; i < entryIds.size(); ++i) {
+          numbering.put(entryIds.get(i), i + 1);
+        }
+      }
+      setNumbering(numbering);
 
       // all update are done
       setExpired(false);
+      return true;
+    } finally {
+      locks.unlock(node.getDocumentReference());
     }
   }
 
@@ -0,0 +1,210 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.projectsforge.xwiki.booktools.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.undercouch.citeproc.csl.CSLItemData;
+import de.undercouch.citeproc.helper.json.JsonLexer;
+import de.undercouch.citeproc.helper.json.JsonParser;
+import de.undercouch.citeproc.helper.json.StringJsonBuilderFactory;
+
+/**
+ * The entries stored by an index. The entries are stored in a versioned
+ * container: a header giving the number of entries then the offset, length and
+ * id of each entry, followed by the JSON of the entries. An entry is only
+ * decoded when it is read, so that a reader needing a few entries does not
+ * decode the whole container. The former format (the JSON of the entries one
+ * after the other) is still read, the entries being then decoded at once, and
+ * is replaced by the container on the next update of the index.
+ */
+public class IndexEntries {
+
+  /** The first line of the container. */
+  public static final String HEADER = "booktools-entries/1";
+
+  /** The logger. */
+  private static Logger logger = LoggerFactory.getLogger(IndexEntries.class);
+
+  /** The start of the JSON of the entries in the value. */
+  private int body;
+
+  /** The bounds of the JSON of the entries by id, in storage order. */
+  private final Map<String, int[]> bounds = new LinkedHashMap<>();
+
+  /** The decoded entries by id. */
+  private final Map<String, CSLItemData> decoded = new HashMap<>();
+
+  /** Tells if the value is in the former format. */
+  private boolean legacy;
+
+  /** The stored value. */
+  private final String value;
+
+  /**
+   * Instantiates the entries read from a stored value.
+   *
+   * @param value
+   *          the stored value
+   */
+  public IndexEntries(String value) {
+    this.value = StringUtils.defaultString(value);
+    if (this.value.startsWith(HEADER + "\n")) {
+      try {
+        readHeader();
+        return;
+      } catch (RuntimeException ex) {
+        logger.warn("Corrupted index entries, the entries are ignored", ex);
+        bounds.clear();
+        return;
+      }
+    }
+
+    // former format: the entries can only be decoded all at once
+    legacy = StringUtils.isNotBlank(this.value);
+    for (CSLItemData itemData : Utils.deserializeCSLItemDatas(this.value)) {
+      bounds.put(itemData.getId(), null);
+      decoded.put(itemData.getId(), itemData);
+    }
+  }
+
+  /**
+   * Serialize entries as a container.
+   *
+   * @param entries
+   *          the entries
+   * @return the stored value
+   */
+  public static String serialize(List<CSLItemData> entries) {
+    if (entries == null || entries.isEmpty()) {
+      return "";
+    }
+    StringJsonBuilderFactory factory = new StringJsonBuilderFactory();
+    StringBuilder header = new StringBuilder(HEADER).append('\n').append(entries.size()).append('\n');
+    StringBuilder json = new StringBuilder();
+    for (CSLItemData entry : entries) {
+      int offset = json.length();
+      json.append(entry.toJson(factory.createJsonBuilder()));
+      header.append(offset).append(' ').append(json.length() - offset).append(' ').append(entry.getId()).append('\n');
+    }
+    return header.append(json).toString();
+  }
+
+  /**
+   * Gets an entry.
+   *
+   * @param id
+   *          the id of the entry
+   * @return the entry or null if the entry is not stored
+   */
+  public CSLItemData get(String id) {
+    CSLItemData itemData = decoded.get(id);
+    if (itemData == null && bounds.get(id) != null) {
+      int[] entryBounds = bounds.get(id);
+      String json = value.substring(body + entryBounds[0], body + entryBounds[0] + entryBounds[1]);
+      try {
+        itemData = CSLItemData.fromJson(new JsonParser(new JsonLexer(new StringReader(json))).parseObject());
+        decoded.put(id, itemData);
+      } catch (IOException ex) {
+        logger.warn("Could not decode the index entry " + id, ex);
+      }
+    }
+    return itemData;
+  }
+
+  /**
+   * Gets some entries, only these entries being decoded.
+   *
+   * @param ids
+   *          the ids of the entries in the wanted order
+   * @return the entries which are stored
+   */
+  public List<CSLItemData> get(Collection<String> ids) {
+    List<CSLItemData> entries = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      CSLItemData itemData = get(id);
+      if (itemData != null) {
+        entries.add(itemData);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Gets all the entries in storage order.
+   *
+   * @return the entries
+   */
+  public List<CSLItemData> getAll() {
+    if (bounds.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return get(bounds.keySet());
+  }
+
+  /**
+   * Serialize the entries without some of them, the other entries being copied
+   * without being decoded.
+   *
+   * @param ids
+   *          the ids of the entries to remove
+   * @return the stored value
+   */
+  public String serializeWithout(Collection<String> ids) {
+    if (legacy) {
+      List<CSLItemData> entries = getAll();
+      entries.removeIf(itemData -> ids.contains(itemData.getId()));
+      return serialize(entries);
+    }
+    int count = 0;
+    StringBuilder header = new StringBuilder();
+    StringBuilder json = new StringBuilder();
+    for (Map.Entry<String, int[]> entry : bounds.entrySet()) {
+      if (!ids.contains(entry.getKey())) {
+        int[] entryBounds = entry.getValue();
+        header.append(json.length()).append(' ').append(entryBounds[1]).append(' ').append(entry.getKey())
+            .append('\n');
+        json.append(value, body + entryBounds[0], body + entryBounds[0] + entryBounds[1]);
+        count++;
+      }
+    }
+    if (count == 0) {
+      return "";
+    }
+    return HEADER + '\n' + count + '\n' + header + json;
+  }
+
+  /**
+   * Read the header of a container.
+   */
+  private void readHeader() {
+    int pos = HEADER.length() + 1;
+    int end = value.indexOf('\n', pos);
+    int count = Integer.parseInt(value.substring(pos, end));
+    pos = end + 1;
+    for (int i = 0; i < count; ++i) {
+      end = value.indexOf('\n', pos);
+      String[] fields = value.substring(pos, end).split(" ", 3);
+      bounds.put(fields[2], new int[] { Integer.parseInt(fields[0]), Integer.parseInt(fields[1]) });
+      pos = end + 1;
+    }
+    body = pos;
+    for (int[] entryBounds : bounds.values()) {
+      if (body + entryBounds[0] + entryBounds[1] > value.length()) {
+        throw new IllegalStateException("Entry out of the container");
+      }
+    }
+  }
+
+}
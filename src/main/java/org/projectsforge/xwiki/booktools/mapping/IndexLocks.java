@@ -0,0 +1,166 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The locks serializing the updates of the indexes. The locks are striped by
+ * index document so that the updates of unrelated books run in parallel while
+ * the updates of a given index are done one at a time. A thread waiting too
+ * long for the lock of an index can give up, the index being left expired with
+ * its stored data until the running update ends.
+ */
+public class IndexLocks {
+
+  /** The default number of stripes. */
+  public static final int DEFAULT_STRIPES = 64;
+
+  /** The default maximum time to wait for the lock of an index in seconds. */
+  public static final int DEFAULT_TIMEOUT = 30;
+
+  /** The logger. */
+  private static Logger logger = LoggerFactory.getLogger(IndexLocks.class);
+
+  /** The number of acquisitions. */
+  private long acquisitions;
+
+  /** The number of acquisitions which had to wait for another update. */
+  private long contentions;
+
+  /** The stripes. */
+  private final ReentrantLock[] locks;
+
+  /** The maximum wait time in nanoseconds. */
+  private long maxWait;
+
+  /**
+   * Tells if the lock is given up after the timeout (the stale index being
+   * used) instead of waiting for it.
+   */
+  private final boolean staleOnTimeout;
+
+  /** The timeout in nanoseconds. */
+  private final long timeout;
+
+  /** The number of acquisitions given up after the timeout. */
+  private long timeouts;
+
+  /** The total wait time in nanoseconds. */
+  private long totalWait;
+
+  /**
+   * Instantiates new index locks.
+   *
+   * @param stripes
+   *          the number of stripes
+   * @param timeout
+   *          the maximum time to wait for the lock of an index in seconds
+   * @param staleOnTimeout
+   *          tells if the lock is given up after the timeout instead of
+   *          waiting for it
+   */
+  public IndexLocks(int stripes, int timeout, boolean staleOnTimeout) {
+    this.locks = new ReentrantLock[Math.max(1, stripes)];
+    for (int i = 0; i < locks.length; ++i) {
+      locks[i] = new ReentrantLock();
+    }
+    this.timeout = TimeUnit.SECONDS.toNanos(timeout);
+    this.staleOnTimeout = staleOnTimeout;
+  }
+
+  /**
+   * Gets the lock of an index.
+   *
+   * @param indexReference
+   *          the index reference
+   * @return the lock
+   */
+  private ReentrantLock getLock(DocumentReference indexReference) {
+    return locks[Math.floorMod(indexReference.hashCode(), locks.length)];
+  }
+
+  /**
+   * Gets the statistics of the locks.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public synchronized void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "acquisitions", acquisitions);
+    statistics.put(prefix + "contentions", contentions);
+    statistics.put(prefix + "maxWait", TimeUnit.NANOSECONDS.toMillis(maxWait));
+    statistics.put(prefix + "timeouts", timeouts);
+    statistics.put(prefix + "totalWait", TimeUnit.NANOSECONDS.toMillis(totalWait));
+  }
+
+  /**
+   * Lock an index for an update.
+   *
+   * @param indexReference
+   *          the index reference
+   * @return true, if the lock is held (false if it has been given up after the
+   *         timeout)
+   */
+  public boolean lock(DocumentReference indexReference) {
+    ReentrantLock lock = getLock(indexReference);
+    if (lock.tryLock()) {
+      record(0, false, false);
+      return true;
+    }
+
+    long start = System.nanoTime();
+    boolean locked = false;
+    try {
+      locked = lock.tryLock(timeout, TimeUnit.NANOSECONDS);
+      if (!locked && !staleOnTimeout) {
+        logger.warn("Still waiting for the lock of index {}", indexReference);
+        lock.lock();
+        locked = true;
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    record(System.nanoTime() - start, true, !locked);
+    return locked;
+  }
+
+  /**
+   * Record an acquisition.
+   *
+   * @param wait
+   *          the wait time in nanoseconds
+   * @param contended
+   *          tells if the lock was held by another thread
+   * @param timedOut
+   *          tells if the lock has been given up
+   */
+  private synchronized void record(long wait, boolean contended, boolean timedOut) {
+    acquisitions++;
+    if (contended) {
+      contentions++;
+    }
+    if (timedOut) {
+      timeouts++;
+    }
+    totalWait += wait;
+    maxWait = Math.max(maxWait, wait);
+  }
+
+  /**
+   * Unlock an index.
+   *
+   * @param indexReference
+   *          the index reference
+   */
+  public void unlock(DocumentReference indexReference) {
+    getLock(indexReference).unlock();
+  }
+
+}
@@ -0,0 +1,152 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of the tree of an index as seen by the last update : its position and
+ * its local index. The pages are stored on the index in tree order so that the
+ * change of the local index of a page can be applied without walking the tree
+ * again.
+ */
+public class IndexedPage {
+
+  /** Tells if the page is the bibliography page. */
+  private boolean bibliographyPage;
+
+  /** The depth of the page in the tree (-1 if not stored). */
+  private int depth = -1;
+
+  /** The keys cited by the page. */
+  private List<String> keys = new ArrayList<>();
+
+  /** The order of the page among its siblings. */
+  private int order;
+
+  /** The document reference. */
+  private String reference;
+
+  /**
+   * Instantiates a new empty indexed page.
+   */
+  public IndexedPage() {
+  }
+
+  /**
+   * Instantiates a new indexed page.
+   *
+   * @param reference
+   *          the document reference
+   * @param order
+   *          the order of the page among its siblings
+   * @param depth
+   *          the depth of the page in the tree
+   * @param keys
+   *          the keys cited by the page
+   * @param bibliographyPage
+   *          tells if the page is the bibliography page
+   */
+  public IndexedPage(String reference, int order, int depth, List<String> keys, boolean bibliographyPage) {
+    this.reference = reference;
+    this.order = order;
+    this.depth = depth;
+    this.keys = new ArrayList<>(keys);
+    this.bibliographyPage = bibliographyPage;
+  }
+
+  /**
+   * Gets the depth of the page in the tree.
+   *
+   * @return the depth (0 for the index page, -1 if not stored)
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Gets the keys cited by the page.
+   *
+   * @return the keys
+   */
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  /**
+   * Gets the order of the page among its siblings.
+   *
+   * @return the order
+   */
+  public int getOrder() {
+    return order;
+  }
+
+  /**
+   * Gets the document reference.
+   *
+   * @return the reference
+   */
+  public String getReference() {
+    return reference;
+  }
+
+  /**
+   * Checks if the page is the bibliography page.
+   *
+   * @return true, if is bibliography page
+   */
+  public boolean isBibliographyPage() {
+    return bibliographyPage;
+  }
+
+  /**
+   * Sets if the page is the bibliography page.
+   *
+   * @param bibliographyPage
+   *          the new bibliography page
+   */
+  public void setBibliographyPage(boolean bibliographyPage) {
+    this.bibliographyPage = bibliographyPage;
+  }
+
+  /**
+   * Sets the depth of the page in the tree.
+   *
+   * @param depth
+   *          the new depth
+   */
+  public void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  /**
+   * Sets the keys cited by the page.
+   *
+   * @param keys
+   *          the new keys
+   */
+  public void setKeys(List<String> keys) {
+    this.keys = keys;
+  }
+
+  /**
+   * Sets the order of the page among its siblings.
+   *
+   * @param order
+   *          the new order
+   */
+  public void setOrder(int order) {
+    this.order = order;
+  }
+
+  /**
+   * Sets the document reference.
+   *
+   * @param reference
+   *          the new reference
+   */
+  public void setReference(String reference) {
+    this.reference = reference;
+  }
+
+}
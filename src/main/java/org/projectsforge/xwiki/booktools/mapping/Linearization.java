@@ -0,0 +1,186 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pages of a book in reading order (the order of
+ * {@link DocumentWalker.Node#getTree()}) with their depth, as stored by the
+ * last update of the index. The parent and the siblings of each page are
+ * computed once so that the navigation in the book is answered in constant
+ * time.
+ */
+public class Linearization {
+
+  /** The depths by position. */
+  private final int[] depths;
+
+  /** The next siblings by position (-1 if none). */
+  private final int[] nextSiblings;
+
+  /** The parents by position (-1 for the root). */
+  private final int[] parents;
+
+  /** The positions by document reference. */
+  private final Map<String, Integer> positions = new HashMap<>();
+
+  /** The previous siblings by position (-1 if none). */
+  private final int[] previousSiblings;
+
+  /** The document references by position. */
+  private final String[] references;
+
+  /**
+   * Instantiates a new linearization.
+   *
+   * @param pages
+   *          the pages in reading order, the first one being the root
+   */
+  Linearization(List<IndexedPage> pages) {
+    int size = pages.size();
+    depths = new int[size];
+    nextSiblings = new int[size];
+    parents = new int[size];
+    previousSiblings = new int[size];
+    references = new String[size];
+
+    // the last page seen at each depth on the path to the current page
+    Deque<Integer> path = new ArrayDeque<>();
+    int[] lastChild = new int[size];
+    for (int i = 0; i < size; ++i) {
+      IndexedPage page = pages.get(i);
+      references[i] = page.getReference();
+      depths[i] = page.getDepth();
+      positions.put(page.getReference(), i);
+      nextSiblings[i] = -1;
+      previousSiblings[i] = -1;
+      lastChild[i] = -1;
+
+      while (path.size() > depths[i]) {
+        path.pop();
+      }
+      parents[i] = path.isEmpty() ? -1 : path.peek();
+      if (parents[i] >= 0) {
+        int previous = lastChild[parents[i]];
+        if (previous >= 0) {
+          previousSiblings[i] = previous;
+          nextSiblings[previous] = i;
+        }
+        lastChild[parents[i]] = i;
+      }
+      path.push(i);
+    }
+  }
+
+  /**
+   * Checks if pages can be linearized: each page is at most one level deeper
+   * than the previous one and the root is the only top level page.
+   *
+   * @param pages
+   *          the pages
+   * @return true, if the pages can be linearized
+   */
+  static boolean isValid(List<IndexedPage> pages) {
+    if (pages.isEmpty() || pages.get(0).getDepth() != 0) {
+      return false;
+    }
+    for (int i = 1; i < pages.size(); ++i) {
+      int depth = pages.get(i).getDepth();
+      if (depth < 1 || depth > pages.get(i - 1).getDepth() + 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the depth of a page.
+   *
+   * @param position
+   *          the position of the page
+   * @return the depth (0 for the root)
+   */
+  public int getDepth(int position) {
+    return depths[position];
+  }
+
+  /**
+   * Gets the next page in reading order.
+   *
+   * @param position
+   *          the position of the page
+   * @return the position of the next page or -1 for the last page
+   */
+  public int getNext(int position) {
+    return position + 1 < references.length ? position + 1 : -1;
+  }
+
+  /**
+   * Gets the next sibling of a page.
+   *
+   * @param position
+   *          the position of the page
+   * @return the position of the next sibling or -1 if none
+   */
+  public int getNextSibling(int position) {
+    return nextSiblings[position];
+  }
+
+  /**
+   * Gets the parent of a page.
+   *
+   * @param position
+   *          the position of the page
+   * @return the position of the parent or -1 for the root
+   */
+  public int getParent(int position) {
+    return parents[position];
+  }
+
+  /**
+   * Gets the position of a page.
+   *
+   * @param reference
+   *          the document reference of the page
+   * @return the position or -1 if the page is not in the book
+   */
+  public int getPosition(String reference) {
+    Integer position = positions.get(reference);
+    return position == null ? -1 : position;
+  }
+
+  /**
+   * Gets the previous sibling of a page.
+   *
+   * @param position
+   *          the position of the page
+   * @return the position of the previous sibling or -1 if none
+   */
+  public int getPreviousSibling(int position) {
+    return previousSiblings[position];
+  }
+
+  /**
+   * Gets the document reference of a page.
+   *
+   * @param position
+   *          the position of the page
+   * @return the document reference
+   */
+  public String getReference(int position) {
+    return references[position];
+  }
+
+  /**
+   * Gets the number of pages.
+   *
+   * @return the number of pages
+   */
+  public int size() {
+    return references.length;
+  }
+
+}
@@ -0,0 +1,279 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Cache of the metadata of the nodes shared by the document walkers of all the
+ * requests: the children (without the hidden ones), the order and the index
+ * flag of the pages, so that a request walking a book does not query or load
+ * again the pages walked by the previous requests. The parent is not cached,
+ * being computed from the document reference.
+ * <p>
+ * The metadata read from a loaded document are stamped with its version and
+ * dropped when a walker loads another version. The metadata of a page and of
+ * all the space home pages above it are dropped when the page is created,
+ * updated or deleted, and the metadata computed while a page was changed are
+ * not cached. The cache is bounded, the least recently used entries being
+ * dropped first.
+ */
+public class NodeMetadataCache {
+
+  /**
+   * The immutable metadata of a node. Each metadata is null while it is not
+   * known.
+   */
+  public static final class Metadata {
+
+    /** The children. */
+    private final List<DocumentReference> children;
+
+    /** Tells if the node holds an index. */
+    private final Boolean index;
+
+    /** The order. */
+    private final Integer order;
+
+    /** The version of the document the metadata have been read from. */
+    private final String version;
+
+    /**
+     * Instantiates new metadata.
+     *
+     * @param version
+     *          the version
+     * @param children
+     *          the children
+     * @param order
+     *          the order
+     * @param index
+     *          the index flag
+     */
+    private Metadata(String version, List<DocumentReference> children, Integer order, Boolean index) {
+      this.version = version;
+      this.children = children;
+      this.order = order;
+      this.index = index;
+    }
+
+    /**
+     * Gets the children in order.
+     *
+     * @return the children or null if they are not known
+     */
+    public List<DocumentReference> getChildren() {
+      return children;
+    }
+
+    /**
+     * Gets the index flag.
+     *
+     * @return the index flag or null if it is not known
+     */
+    public Boolean getIndex() {
+      return index;
+    }
+
+    /**
+     * Gets the order.
+     *
+     * @return the order or null if it is not known
+     */
+    public Integer getOrder() {
+      return order;
+    }
+
+    /**
+     * Gets the version of the document the metadata have been read from.
+     *
+     * @return the version or null if no document has been read
+     */
+    public String getVersion() {
+      return version;
+    }
+  }
+
+  /** The default maximum number of nodes. */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  /** The generation, incremented on each invalidation. */
+  private long generation;
+
+  /** The hits. */
+  private long hits;
+
+  /** The max size. */
+  private final int maxSize;
+
+  /** The metadata by document reference in access order. */
+  private final LinkedHashMap<DocumentReference, Metadata> metadatas = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The misses. */
+  private long misses;
+
+  /**
+   * Instantiates a new node metadata cache.
+   *
+   * @param maxSize
+   *          the maximum number of nodes
+   */
+  public NodeMetadataCache(int maxSize) {
+    this.maxSize = Math.max(1, maxSize);
+  }
+
+  /**
+   * Gets the metadata of a node.
+   *
+   * @param documentReference
+   *          the document reference
+   * @param version
+   *          the version of the document if it is loaded, null otherwise
+   * @return the metadata or null if they are not cached or have been read from
+   *         another version
+   */
+  public synchronized Metadata get(DocumentReference documentReference, String version) {
+    Metadata metadata = metadatas.get(documentReference);
+    if (metadata != null && version != null && metadata.version != null && !version.equals(metadata.version)) {
+      metadatas.remove(documentReference);
+      metadata = null;
+    }
+    if (metadata == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return metadata;
+  }
+
+  /**
+   * Gets the generation, to be read before computing the metadata to put.
+   *
+   * @return the generation
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Gets the statistics of the cache.
+   *
+   * @param prefix
+   *          the prefix of the statistic names
+   * @param statistics
+   *          the map receiving the statistics
+   */
+  public synchronized void getStatistics(String prefix, Map<String, Number> statistics) {
+    statistics.put(prefix + "hits", hits);
+    statistics.put(prefix + "invalidations", generation);
+    statistics.put(prefix + "misses", misses);
+    statistics.put(prefix + "size", metadatas.size());
+  }
+
+  /**
+   * Drop the metadata of a changed page and of the space home pages above it,
+   * whose children may have changed.
+   *
+   * @param documentReference
+   *          the document reference of the changed page
+   */
+  public synchronized void invalidate(DocumentReference documentReference) {
+    generation++;
+    metadatas.remove(documentReference);
+    EntityReference space = documentReference.getLastSpaceReference();
+    while (space != null && space.getType() == EntityType.SPACE) {
+      metadatas.remove(new DocumentReference(new EntityReference("WebHome", EntityType.DOCUMENT, space)));
+      space = space.getParent();
+    }
+  }
+
+  /**
+   * Put metadata in the cache.
+   *
+   * @param documentReference
+   *          the document reference
+   * @param generation
+   *          the generation read before computing the metadata
+   * @param version
+   *          the version of the document the metadata have been read from or
+   *          null
+   * @param children
+   *          the children or null to keep the cached ones
+   * @param order
+   *          the order or null to keep the cached one
+   * @param index
+   *          the index flag or null to keep the cached one
+   */
+  private synchronized void put(DocumentReference documentReference, long generation, String version,
+      List<DocumentReference> children, Integer order, Boolean index) {
+    if (generation != this.generation) {
+      // a page has changed while the metadata were computed
+      return;
+    }
+    Metadata previous = metadatas.get(documentReference);
+    if (previous != null && (version == null || previous.version == null || version.equals(previous.version))) {
+      version = version == null ? previous.version : version;
+      children = children == null ? previous.children : children;
+      order = order == null ? previous.order : order;
+      index = index == null ? previous.index : index;
+    }
+    metadatas.put(documentReference, new Metadata(version, children, order, index));
+    while (metadatas.size() > maxSize) {
+      metadatas.remove(metadatas.keySet().iterator().next());
+    }
+  }
+
+  /**
+   * Cache the children of a node.
+   *
+   * @param documentReference
+   *          the document reference
+   * @param generation
+   *          the generation read before querying the children
+   * @param children
+   *          the children in order
+   */
+  public void putChildren(DocumentReference documentReference, long generation, List<DocumentReference> children) {
+    put(documentReference, generation, null, Collections.unmodifiableList(new ArrayList<>(children)), null, null);
+  }
+
+  /**
+   * Cache the index flag of a node.
+   *
+   * @param documentReference
+   *          the document reference
+   * @param generation
+   *          the generation read before loading the document
+   * @param version
+   *          the version of the document
+   * @param index
+   *          tells if the node holds an index
+   */
+  public void putIndex(DocumentReference documentReference, long generation, String version, boolean index) {
+    put(documentReference, generation, version, null, null, index);
+  }
+
+  /**
+   * Cache the order of a node.
+   *
+   * @param documentReference
+   *          the document reference
+   * @param generation
+   *          the generation read before reading the order
+   * @param version
+   *          the version of the document if the order has been read from it,
+   *          null otherwise
+   * @param order
+   *          the order
+   */
+  public void putOrder(DocumentReference documentReference, long generation, String version, int order) {
+    put(documentReference, generation, version, null, order, null);
+  }
+
+}
@@ -20,7 +20,7 @@ public class Order {
   public static final String CLASS_REFERENCE_AS_STRING = Constants.CODE_SPACE_NAME_AS_STRING + ".OrderClass";
 
   /** The Constant FIELD_ORDER. */
-  private static final String FIELD_ORDER = "order";
+  public static final String FIELD_ORDER = "order";
 
   /** The node. */
   private Node node;
@@ -0,0 +1,146 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * The moves of the pages of subtrees planned by the document walker, in order,
+ * a page being moved after the page it becomes the child of. The pages are
+ * moved one after the other and, if a page can not be moved, the pages already
+ * moved are put back in reverse order.
+ */
+public class SubtreeMove {
+
+  /** The logger. */
+  private static Logger logger = LoggerFactory.getLogger(SubtreeMove.class);
+
+  /** The new document references of the pages. */
+  private final List<DocumentReference> destinations = new ArrayList<>();
+
+  /** The new parents of the pages. */
+  private final List<DocumentReference> parents = new ArrayList<>();
+
+  /** The document references of the pages to move. */
+  private final List<DocumentReference> sources = new ArrayList<>();
+
+  /**
+   * Adds a move.
+   *
+   * @param source
+   *          the document reference of the page
+   * @param destination
+   *          the new document reference of the page
+   * @param parent
+   *          the new parent of the page
+   */
+  public void addMove(DocumentReference source, DocumentReference destination, DocumentReference parent) {
+    sources.add(source);
+    destinations.add(destination);
+    parents.add(parent);
+  }
+
+  /**
+   * Gets the new document references of the pages.
+   *
+   * @return the destinations
+   */
+  public List<DocumentReference> getDestinations() {
+    return destinations;
+  }
+
+  /**
+   * Gets the document references of the pages to move.
+   *
+   * @return the sources
+   */
+  public List<DocumentReference> getSources() {
+    return sources;
+  }
+
+  /**
+   * Move a page.
+   *
+   * @param context
+   *          the context
+   * @param source
+   *          the document reference of the page
+   * @param destination
+   *          the new document reference of the page
+   * @param parent
+   *          the new parent of the page
+   * @param formerParents
+   *          the list receiving the former parent of the page as soon as it is
+   *          renamed, so that it is put back even if its new parent can not be
+   *          saved, or null
+   * @throws XWikiException
+   *           if the page can not be moved
+   */
+  private void move(XWikiContext context, DocumentReference source, DocumentReference destination,
+      DocumentReference parent, List<DocumentReference> formerParents) throws XWikiException {
+    XWiki wiki = context.getWiki();
+    XWikiDocument document = wiki.getDocument(source, context);
+    if (document.isNew()) {
+      throw new IllegalStateException("The page " + source + " does not exist anymore");
+    }
+    DocumentReference formerParent = document.getParentReference();
+    document.rename(destination, context);
+    if (formerParents != null) {
+      formerParents.add(formerParent);
+    }
+    XWikiDocument renamed = wiki.getDocument(destination, context);
+    renamed.setParentReference(parent);
+    wiki.saveDocument(renamed, context);
+  }
+
+  /**
+   * Put back the moved pages in reverse order.
+   *
+   * @param context
+   *          the context
+   * @param formerParents
+   *          the former parents of the moved pages
+   */
+  private void rollback(XWikiContext context, List<DocumentReference> formerParents) {
+    for (int i = formerParents.size() - 1; i >= 0; --i) {
+      try {
+        move(context, destinations.get(i), sources.get(i), formerParents.get(i), null);
+      } catch (XWikiException | RuntimeException ex) {
+        logger.error("Can not put back " + destinations.get(i) + " to " + sources.get(i), ex);
+      }
+    }
+  }
+
+  /**
+   * Move the pages, the rights having been checked while planning the moves.
+   *
+   * @param context
+   *          the context
+   * @return true, if all the pages have been moved (false if the moved pages
+   *         have been put back)
+   */
+  public boolean run(XWikiContext context) {
+    List<DocumentReference> formerParents = new ArrayList<>(sources.size());
+    int i = 0;
+    try {
+      for (; i < sources.size(); ++i) {
+        move(context, sources.get(i), destinations.get(i), parents.get(i), formerParents);
+      }
+      return true;
+    } catch (XWikiException | RuntimeException ex) {
+      logger.error("An error occurred while moving " + sources.get(i) + ", the pages already moved are put back",
+          ex);
+      rollback(context, formerParents);
+      return false;
+    }
+  }
+
+}
@@ -188,6 +188,15 @@ public class BookToolsScriptService implements ScriptService {
     return service.getNewPersonReference();
   }
 
+  /**
+   * Gets the statistics of the caches.
+   *
+   * @return the statistics by name
+   */
+  public Map<String, Number> getStatistics() {
+    return service.getStatistics();
+  }
+
   /**
    * Merge persons.
    *
@@ -4,10 +4,17 @@ import java.util.List;
 import java.util.Map;
 
 import org.projectsforge.xwiki.booktools.Error;
+import org.projectsforge.xwiki.booktools.csl.RenderedBibliography;
+import org.projectsforge.xwiki.booktools.job.IndexExpiryCoalescer;
+import org.projectsforge.xwiki.booktools.macro.CitationMemo;
+import org.projectsforge.xwiki.booktools.macro.ParsedContentCache;
+import org.projectsforge.xwiki.booktools.mapping.CitingIndexMap;
 import org.projectsforge.xwiki.booktools.mapping.Configuration;
 import org.projectsforge.xwiki.booktools.mapping.DocumentWalker;
 import org.projectsforge.xwiki.booktools.mapping.Entry;
 import org.projectsforge.xwiki.booktools.mapping.Index;
+import org.projectsforge.xwiki.booktools.mapping.IndexLocks;
+import org.projectsforge.xwiki.booktools.mapping.NodeMetadataCache;
 import org.projectsforge.xwiki.booktools.mapping.Person;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Role;
@@ -37,11 +44,33 @@ public interface BookToolsService {
    */
   void addError(String id, Object... params);
 
+  /**
+   * Apply to an index the changes of its pages recorded by
+   * {@link #scheduleIndexExpiry(DocumentReference, DocumentReference, boolean)}
+   * and not yet applied, expiring the index. The changes are taken from the
+   * pending ones : if the index can not be saved, they must be given back with
+   * {@link #restoreIndexExpiry(DocumentReference, IndexExpiryCoalescer.Changes)}.
+   *
+   * @param index
+   *          the index
+   * @return the applied changes (empty if there was none)
+   */
+  IndexExpiryCoalescer.Changes applyIndexExpiry(Index index);
+
   /**
    * Clear errors.
    */
   void clearErrors();
 
+  /**
+   * Forget that an update of the index is scheduled (the update job has
+   * started).
+   *
+   * @param indexReference
+   *          the index document reference
+   */
+  void clearScheduledIndexUpdate(DocumentReference indexReference);
+
   /**
    * Creates the entry from the CSLItemData on the current wiki.
    *
@@ -69,6 +98,15 @@ public interface BookToolsService {
    */
   void ensureRequirements();
 
+  /**
+   * Expire the indexes citing an entry key so that they load the entry again.
+   * The indexes are updated in background as for the changes of their pages.
+   *
+   * @param key
+   *          the key of the entry
+   */
+  void expireCitingIndexes(String key);
+
   /**
    * Find entry.
    *
@@ -113,6 +151,32 @@ public interface BookToolsService {
    */
   DocumentReference findPersonFromCSLName(WikiReference wikiReference, CSLName name);
 
+  /**
+   * Gets the bibliography style configured on a wiki. The style is resolved
+   * once until the configuration of the wiki changes.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   * @param fieldName
+   *          the configuration field name
+   * @return the bibliography style
+   */
+  String getBibliographyStyle(WikiReference wikiReference, String fieldName);
+
+  /**
+   * Gets the memo of the parsed citations shared by the pages of the books.
+   *
+   * @return the citation memo
+   */
+  CitationMemo getCitationMemo();
+
+  /**
+   * Gets the indexes citing each entry key.
+   *
+   * @return the citing index map
+   */
+  CitingIndexMap getCitingIndexMap();
+
   /**
    * Gets the context.
    *
@@ -121,7 +185,8 @@ public interface BookToolsService {
   XWikiContext getContext();
 
   /**
-   * Gets the CSL object.
+   * Gets a CSL object ready to render the index. The CSL object must be given
+   * back with {@link #releaseCSL(CSL)} once the rendering is done.
    *
    * @param index
    *          the index
@@ -129,6 +194,21 @@ public interface BookToolsService {
    */
   CSL getCSL(Index index);
 
+  /**
+   * Gets a CSL object with the given entries loaded and registered. The CSL
+   * object comes from a pool of citeproc engines and must be given back with
+   * {@link #releaseCSL(CSL)} once the rendering is done.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale (null for the citeproc default locale)
+   * @param itemDatas
+   *          the entries
+   * @return the CSL object
+   */
+  CSL getCSL(String style, String locale, List<CSLItemData> itemDatas);
+
   /**
    * Gets the default configuration.
    *
@@ -150,12 +230,22 @@ public interface BookToolsService {
   Map<String, List<DocumentReference>> getDocumentReferencingEntry(String entryId);
 
   /**
-   * Gets the document walker.
+   * Gets the document walker of the current request, created on the first
+   * call.
    *
    * @return the document walker
    */
   DocumentWalker getDocumentWalker();
 
+  /**
+   * Gets the version of the entries, which changes each time the service
+   * starts: the entries changed while the service was stopped have not expired
+   * the indexes citing them.
+   *
+   * @return the version of the entries
+   */
+  String getEntriesVersion();
+
   /**
    * Gets the entry referencing a person on all wikis.
    *
@@ -172,6 +262,13 @@ public interface BookToolsService {
    */
   List<Error> getErrors();
 
+  /**
+   * Gets the locks serializing the updates of each index.
+   *
+   * @return the index locks
+   */
+  IndexLocks getIndexLocks();
+
   /**
    * Gets the logger.
    *
@@ -211,6 +308,20 @@ public interface BookToolsService {
    */
   DocumentReference getNewPersonReference();
 
+  /**
+   * Gets the cache of the metadata of the nodes shared by the requests.
+   *
+   * @return the node metadata cache
+   */
+  NodeMetadataCache getNodeMetadataCache();
+
+  /**
+   * Gets the cache of the XDOM parsed from the output of citeproc.
+   *
+   * @return the parsed content cache
+   */
+  ParsedContentCache getParsedContentCache();
+
   /**
    * Gets the person.
    *
@@ -220,6 +331,63 @@ public interface BookToolsService {
    */
   Person getPerson(String reference);
 
+  /**
+   * Gets the bibliography of an up to date index rendered for a locale which
+   * is not rendered by the index update. The bibliography is rendered from the
+   * entries stored on the index on first use and cached until the index or the
+   * configuration changes.
+   *
+   * @param index
+   *          the index
+   * @param locale
+   *          the locale
+   * @return the rendered bibliography or null if the rendering failed
+   */
+  RenderedBibliography getRenderedBibliography(Index index, String locale);
+
+  /**
+   * Gets the statistics of the caches.
+   *
+   * @return the statistics by name
+   */
+  Map<String, Number> getStatistics();
+
+  /**
+   * Checks if changes of the pages of a book are waiting for the background
+   * update of its index.
+   *
+   * @param indexReference
+   *          the index reference
+   * @return true, if the pages stored on the index may be stale
+   */
+  boolean hasPendingIndexExpiry(DocumentReference indexReference);
+
+  /**
+   * Invalidate the cached data depending on the configuration of a wiki.
+   *
+   * @param wikiReference
+   *          the wiki reference
+   */
+  void invalidateConfigurationCaches(WikiReference wikiReference);
+
+  /**
+   * Invalidate the cached data depending on an index.
+   *
+   * @param indexReference
+   *          the index document reference
+   */
+  void invalidateIndexCaches(DocumentReference indexReference);
+
+  /**
+   * Invalidate the cached data depending on a page which has been created,
+   * updated or deleted: the node metadata cache and the document walker of the
+   * current request.
+   *
+   * @param documentReference
+   *          the document reference of the page
+   */
+  void invalidateNodeCaches(DocumentReference documentReference);
+
   /**
    * Merge persons.
    *
@@ -240,6 +408,91 @@ public interface BookToolsService {
    */
   List<CSLItemData> parseBibTeX(String bibtex);
 
+  /**
+   * Give back a CSL object obtained through {@link #getCSL(Index)} or
+   * {@link #getCSL(String, String, List)}.
+   *
+   * @param csl
+   *          the CSL object (can be null)
+   */
+  void releaseCSL(CSL csl);
+
+  /**
+   * Render the bibliography and the citation label of each entry with the
+   * numbering of the given entries.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale
+   * @param itemDatas
+   *          the entries in citation order
+   * @return the rendered bibliography or null if citeproc failed
+   */
+  RenderedBibliography renderBibliography(String style, String locale, List<CSLItemData> itemDatas);
+
+  /**
+   * Render a citation without citeproc from the citation numbers stored on the
+   * index. Only the numeric bundled style is handled.
+   *
+   * @param style
+   *          the style
+   * @param numbering
+   *          the citation numbers by key
+   * @param keys
+   *          the keys of the citation
+   * @return the citation or null if it must be rendered by citeproc
+   */
+  String renderCitation(String style, Map<String, Integer> numbering, List<String> keys);
+
+  /**
+   * Render the bibliography entries in the text format without numbering them
+   * in citation order.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale (null for the citeproc default locale)
+   * @param itemDatas
+   *          the entries
+   * @return the rendered entries by id (empty if citeproc failed)
+   */
+  Map<String, String> renderEntries(String style, String locale, List<CSLItemData> itemDatas);
+
+  /**
+   * Give back the changes applied to an index which could not be saved, so that
+   * they are applied and saved by the next update of the index.
+   *
+   * @param indexReference
+   *          the index document reference
+   * @param changes
+   *          the changes returned by {@link #applyIndexExpiry(Index)}
+   */
+  void restoreIndexExpiry(DocumentReference indexReference, IndexExpiryCoalescer.Changes changes);
+
+  /**
+   * Record the change of a page of a book. The update of the index is
+   * scheduled once the pages of the book have not changed for a while, so that
+   * the changes of many pages lead to a single update.
+   *
+   * @param indexReference
+   *          the index document reference
+   * @param pageReference
+   *          the page document reference
+   * @param deleted
+   *          tells if the page has been deleted
+   */
+  void scheduleIndexExpiry(DocumentReference indexReference, DocumentReference pageReference, boolean deleted);
+
+  /**
+   * Schedule a background update of an expired index, unless an update of
+   * this index is already waiting to start.
+   *
+   * @param indexReference
+   *          the index document reference
+   */
+  void scheduleIndexUpdate(DocumentReference indexReference);
+
   /**
    * Validate entry.
    *
@@ -249,4 +502,10 @@ public interface BookToolsService {
    */
   String validateEntry(XWikiDocument doc);
 
+  /**
+   * Start citeproc engines for the styles of the current wiki in background so
+   * that the first renderings do not pay the engine startup.
+   */
+  void warmUpCSLEngines();
+
 }
@@ -21,13 +21,22 @@ package org.projectsforge.xwiki.booktools.service;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Provider;
 
 import org.apache.commons.lang3.StringUtils;
@@ -35,17 +44,37 @@ import org.projectsforge.xwiki.booktools.Constants;
 import org.projectsforge.xwiki.booktools.Error;
 import org.projectsforge.xwiki.booktools.Utils;
 import org.projectsforge.xwiki.booktools.biblatex.BibLaTeXImporter;
+import org.projectsforge.xwiki.booktools.csl.BundledStyleRenderer;
+import org.projectsforge.xwiki.booktools.csl.CSLEngine;
+import org.projectsforge.xwiki.booktools.csl.CSLEnginePool;
+import org.projectsforge.xwiki.booktools.csl.CSLProcessorCache;
+import org.projectsforge.xwiki.booktools.csl.RenderedBibliography;
+import org.projectsforge.xwiki.booktools.csl.RenderedBibliographyCache;
+import org.projectsforge.xwiki.booktools.csl.StyleRegistry;
 import org.projectsforge.xwiki.booktools.fields.CSLDateFields;
 import org.projectsforge.xwiki.booktools.fields.CSLNameFields;
 import org.projectsforge.xwiki.booktools.fields.CSLStringFields;
+import org.projectsforge.xwiki.booktools.job.IndexExpiryCoalescer;
+import org.projectsforge.xwiki.booktools.job.IndexUpdateJob;
+import org.projectsforge.xwiki.booktools.job.IndexUpdateJobRequest;
+import org.projectsforge.xwiki.booktools.macro.CitationMemo;
+import org.projectsforge.xwiki.booktools.macro.ParsedContentCache;
+import org.projectsforge.xwiki.booktools.mapping.CitingIndexMap;
 import org.projectsforge.xwiki.booktools.mapping.Configuration;
 import org.projectsforge.xwiki.booktools.mapping.DocumentWalker;
 import org.projectsforge.xwiki.booktools.mapping.Entry;
 import org.projectsforge.xwiki.booktools.mapping.Index;
+import org.projectsforge.xwiki.booktools.mapping.IndexLocks;
+import org.projectsforge.xwiki.booktools.mapping.NodeMetadataCache;
 import org.projectsforge.xwiki.booktools.mapping.LocalIndex;
 import org.projectsforge.xwiki.booktools.mapping.Person;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.job.JobExecutor;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
@@ -63,24 +92,53 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.classes.BaseClass;
 import com.xpn.xwiki.user.api.XWikiRightService;
 
 import de.undercouch.citeproc.CSL;
-import de.undercouch.citeproc.ListItemDataProvider;
 import de.undercouch.citeproc.csl.CSLCitation;
 import de.undercouch.citeproc.csl.CSLCitationItem;
 import de.undercouch.citeproc.csl.CSLItemData;
 import de.undercouch.citeproc.csl.CSLName;
+import de.undercouch.citeproc.output.Bibliography;
+import de.undercouch.citeproc.output.Citation;
 
 /**
  * Implementation of a <tt>BookToolsService</tt> component.
  */
 @Component
-public class DefaultBookToolsService implements BookToolsService {
+public class DefaultBookToolsService implements BookToolsService, Initializable, Disposable {
+
+  /** The Constant CITEPROC_BUNDLED_RENDERER_PROPERTY. */
+  private static final String CITEPROC_BUNDLED_RENDERER_PROPERTY = "booktools.citeproc.bundledRenderer";
+
+  /** The Constant CITEPROC_POOL_SIZE_PROPERTY. */
+  private static final String CITEPROC_POOL_SIZE_PROPERTY = "booktools.citeproc.poolSize";
+
+  /** The Constant CITEPROC_POOL_TIMEOUT_PROPERTY. */
+  private static final String CITEPROC_POOL_TIMEOUT_PROPERTY = "booktools.citeproc.poolTimeout";
 
   /** The Constant DOCUMENT_WALKER. */
   private static final String DOCUMENT_WALKER = "booktools-document-walker";
 
+  /** The Constant INDEX_EXPIRY_BATCH_SIZE_PROPERTY. */
+  private static final String INDEX_EXPIRY_BATCH_SIZE_PROPERTY = "booktools.index.expiryBatchSize";
+
+  /** The Constant INDEX_EXPIRY_QUIET_PERIOD_PROPERTY. */
+  private static final String INDEX_EXPIRY_QUIET_PERIOD_PROPERTY = "booktools.index.expiryQuietPeriod";
+
+  /** The Constant INDEX_LOCK_STALE_ON_TIMEOUT_PROPERTY. */
+  private static final String INDEX_LOCK_STALE_ON_TIMEOUT_PROPERTY = "booktools.index.lockStaleOnTimeout";
+
+  /** The Constant INDEX_LOCK_STRIPES_PROPERTY. */
+  private static final String INDEX_LOCK_STRIPES_PROPERTY = "booktools.index.lockStripes";
+
+  /** The Constant INDEX_LOCK_TIMEOUT_PROPERTY. */
+  private static final String INDEX_LOCK_TIMEOUT_PROPERTY = "booktools.index.lockTimeout";
+
+  /** The Constant NODE_METADATA_CACHE_SIZE_PROPERTY. */
+  private static final String NODE_METADATA_CACHE_SIZE_PROPERTY = "booktools.nodeMetadata.cacheSize";
+
   /** The id regex. */
   private static Pattern ID_REGEX = Pattern.compile("^[a-zA-Z\\.0-9:\\-_]{2,50}$");
 
@@ -91,6 +149,29 @@ public class DefaultBookToolsService implements BookToolsService {
   /** The biblatex importer. */
   private BibLaTeXImporter biblatexImporter = new BibLaTeXImporter();
 
+  /** The Java renderer of the bundled styles. */
+  private BundledStyleRenderer bundledStyleRenderer;
+
+  /** The memo of the parsed citations. */
+  private CitationMemo citationMemo = new CitationMemo();
+
+  /** The indexes citing each entry key. */
+  private CitingIndexMap citingIndexMap = new CitingIndexMap();
+
+  /** Tells if all the stored indexes have been registered in the map. */
+  private volatile boolean citingIndexesLoaded;
+
+  /** The configuration source (xwiki.properties). */
+  @Inject
+  @Named("xwikiproperties")
+  private ConfigurationSource configurationSource;
+
+  /** The pool of citeproc engines. */
+  private CSLEnginePool cslEnginePool;
+
+  /** The cache of ready-to-use CSL processors. */
+  private CSLProcessorCache cslProcessorCache;
+
   /** The context provider. */
   @Inject
   private Provider<XWikiContext> contextProvider;
@@ -99,14 +180,48 @@ public class DefaultBookToolsService implements BookToolsService {
   @Inject
   private DocumentReferenceResolver<String> documentReferenceResolver;
 
+  /**
+   * The start time of the service: the changes of the entries are only tracked
+   * while the service runs.
+   */
+  private final String entriesEpoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+  /** The coalescer of the changes of the pages of the books. */
+  private IndexExpiryCoalescer indexExpiryCoalescer;
+
+  /** The locks serializing the updates of each index. */
+  private IndexLocks indexLocks;
+
+  /** The job executor. */
+  @Inject
+  private JobExecutor jobExecutor;
+
   /** The logger. */
   @Inject
   private Logger logger;
 
+  /** The cache of the metadata of the nodes shared by the requests. */
+  private NodeMetadataCache nodeMetadataCache;
+
+  /** The cache of the parsed citeproc outputs. */
+  private ParsedContentCache parsedContentCache = new ParsedContentCache();
+
   /** The query manager. */
   @Inject
   private QueryManager queryManager;
 
+  /** The bibliographies rendered on view for the other locales. */
+  private RenderedBibliographyCache renderedBibliographyCache = new RenderedBibliographyCache();
+
+  /** The indexes whose update job is waiting to start. */
+  private Set<DocumentReference> scheduledIndexUpdates = ConcurrentHashMap.newKeySet();
+
+  /** The style registry. */
+  private StyleRegistry styleRegistry = new StyleRegistry();
+
+  /** The executor starting the citeproc engines in the background. */
+  private ExecutorService warmUpExecutor;
+
   /** The wiki descriptor manager. */
   @Inject
   private WikiDescriptorManager wikiDescriptorManager;
@@ -131,6 +246,29 @@ public class DefaultBookToolsService implements BookToolsService {
     list.add(new Error(id, params));
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * applyIndexExpiry(org.projectsforge.xwiki.booktools.mapping.Index)
+   */
+  @Override
+  public IndexExpiryCoalescer.Changes applyIndexExpiry(Index index) {
+    IndexExpiryCoalescer.Changes changes = indexExpiryCoalescer.take(index.getNode().getDocumentReference());
+    if (changes.isEmpty()) {
+      return changes;
+    }
+    DocumentWalker walker = getDocumentWalker();
+    Map<DocumentReference, Boolean> pages = changes.getPages();
+    for (DocumentReference pageReference : pages.keySet()) {
+      index.recordPageUpdate(walker.getNode(pageReference), pages.get(pageReference));
+    }
+    // the changed entries are loaded again by the update
+    index.dropEntries(changes.getKeys());
+    index.setExpired(true);
+    return changes;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -145,6 +283,17 @@ public class DefaultBookToolsService implements BookToolsService {
     }
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * clearScheduledIndexUpdate(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public void clearScheduledIndexUpdate(DocumentReference indexReference) {
+    scheduledIndexUpdates.remove(indexReference);
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -207,6 +356,40 @@ public class DefaultBookToolsService implements BookToolsService {
       }
     }
 
+    // add the fields introduced after the classes have been packaged
+    try {
+      XWikiDocument indexClassDoc = wiki.getDocument(Index.CLASS_REFERENCE, context);
+      BaseClass indexClass = indexClassDoc.getXClass();
+      if (Index.ensureClassFields(indexClass)) {
+        wiki.saveDocument(indexClassDoc, "Add BookTools index fields", context);
+      }
+    } catch (XWikiException ex) {
+      logger.warn("An error occurred", ex);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Disposable#dispose()
+   */
+  @Override
+  public void dispose() {
+    indexExpiryCoalescer.shutdown();
+    warmUpExecutor.shutdownNow();
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * expireCitingIndexes(java.lang.String)
+   */
+  @Override
+  public void expireCitingIndexes(String key) {
+    for (DocumentReference indexReference : getCitingIndexMap().getCitingIndexes(key)) {
+      indexExpiryCoalescer.expireEntry(indexReference, key);
+    }
   }
 
   /*
@@ -314,6 +497,44 @@ public class DefaultBookToolsService implements BookToolsService {
     return null;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * getBibliographyStyle(org.xwiki.model.reference.WikiReference,
+   * java.lang.String)
+   */
+  @Override
+  public String getBibliographyStyle(WikiReference wikiReference, String fieldName) {
+    return styleRegistry.getStyle(wikiReference, fieldName,
+        () -> getDefaultConfiguration(wikiReference).getBibliographyStyle(fieldName));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.booktools.service.BookToolsService#getCitationMemo()
+   */
+  @Override
+  public CitationMemo getCitationMemo() {
+    return citationMemo;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.booktools.service.BookToolsService#getCitingIndexMap()
+   */
+  @Override
+  public CitingIndexMap getCitingIndexMap() {
+    if (!citingIndexesLoaded) {
+      loadCitingIndexes();
+    }
+    return citingIndexMap;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -332,27 +553,58 @@ public class DefaultBookToolsService implements BookToolsService {
    */
   @Override
   public CSL getCSL(Index index) {
-    try {
-      List<CSLItemData> itemDatas = index.getEntries();
+    String style = index.getBibliographyStyle();
+    String locale = getContext().getLocale().toString();
+    CSLProcessorCache.Key key = new CSLProcessorCache.Key(index.getNode().getDocumentReference(), index.getVersion(),
+        style, locale);
 
-      // build CSL object from CSLItemData with current locale
-      CSL csl = new CSL(new ListItemDataProvider(itemDatas.toArray(new CSLItemData[0])), index.getBibliographyStyle(),
-          getContext().getLocale().toString());
+    CSL csl = cslProcessorCache.acquire(key);
+    if (csl != null) {
+      return csl;
+    }
 
-      // build the list of all keys in order and register their usage
-      List<String> keys = new ArrayList<>();
-      itemDatas.forEach(e -> keys.add(e.getId()));
-      csl.registerCitationItems(keys.toArray(new String[0]), false);
+    // citeproc retrieves all the registered entries to number them, which are
+    // the entries cited by the book
+    List<CSLItemData> itemDatas = index.getEntries(index.getKeys());
 
-      // build the citation in order to produce a proper numbering including all
-      // keys
-      for (String key : keys) {
-        csl.makeCitation(new CSLCitation(new CSLCitationItem(key)));
-      }
+    // get a CSL object loaded with the CSLItemData and the current locale
+    csl = getCSL(style, locale, itemDatas);
+    if (csl == null) {
+      return null;
+    }
 
-      csl.setConvertLinks(true);
-      csl.setOutputFormat("text");
+    try {
+      prepareNumbering(csl, style, itemDatas);
+      cslProcessorCache.track(key, csl);
       return csl;
+    } catch (RuntimeException ex) {
+      releaseCSL(csl);
+      throw ex;
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#getCSL(java.
+   * lang.String, java.lang.String, java.util.List)
+   */
+  @Override
+  public CSL getCSL(String style, String locale, List<CSLItemData> itemDatas) {
+    try {
+      CSLEngine engine = cslEnginePool.acquire(style, locale);
+      try {
+        engine.load(itemDatas);
+
+        // build the list of all keys in order and register their usage
+        List<String> keys = new ArrayList<>();
+        itemDatas.forEach(e -> keys.add(e.getId()));
+        engine.getCSL().registerCitationItems(keys.toArray(new String[0]), false);
+      } catch (RuntimeException ex) {
+        cslEnginePool.release(engine);
+        throw ex;
+      }
+      return engine.getCSL();
     } catch (IOException ex) {
       addError(Error.CSL, ex.getMessage());
       logger.warn("Can not create CSL instance", ex);
@@ -421,15 +673,29 @@ public class DefaultBookToolsService implements BookToolsService {
    * getDocumentWalker()
    */
   @Override
-  public synchronized DocumentWalker getDocumentWalker() {
+  public DocumentWalker getDocumentWalker() {
+    // the context belongs to the current request, so that the walker is not
+    // shared between threads
     XWikiContext context = getContext();
     DocumentWalker result = (DocumentWalker) context.get(DOCUMENT_WALKER);
     if (result == null) {
       result = new DocumentWalker(this, documentReferenceResolver, queryManager, authorizationManager);
+      context.put(DOCUMENT_WALKER, result);
     }
     return result;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * getEntriesVersion()
+   */
+  @Override
+  public String getEntriesVersion() {
+    return entriesEpoch;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -495,6 +761,17 @@ public class DefaultBookToolsService implements BookToolsService {
     return list;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.booktools.service.BookToolsService#getIndexLocks()
+   */
+  @Override
+  public IndexLocks getIndexLocks() {
+    return indexLocks;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -622,6 +899,28 @@ public class DefaultBookToolsService implements BookToolsService {
         context.getWikiReference());
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * getNodeMetadataCache()
+   */
+  @Override
+  public NodeMetadataCache getNodeMetadataCache() {
+    return nodeMetadataCache;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * getParsedContentCache()
+   */
+  @Override
+  public ParsedContentCache getParsedContentCache() {
+    return parsedContentCache;
+  }
+
   /**
    * Gets the person.
    *
@@ -645,6 +944,184 @@ public class DefaultBookToolsService implements BookToolsService {
     return getPerson(documentReferenceResolver.resolve(reference, context.getWikiReference()));
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * getRenderedBibliography(org.projectsforge.xwiki.booktools.mapping.Index,
+   * java.lang.String)
+   */
+  @Override
+  public RenderedBibliography getRenderedBibliography(Index index, String locale) {
+    String style = index.getBibliographyStyle();
+    CSLProcessorCache.Key key = new CSLProcessorCache.Key(index.getNode().getDocumentReference(), index.getVersion(),
+        style, locale);
+    RenderedBibliography rendered = renderedBibliographyCache.get(key);
+    if (rendered == null) {
+      // the entries are stored in citation order by the update
+      rendered = renderBibliography(style, locale, index.getStoredEntries().getAll());
+      if (rendered != null) {
+        renderedBibliographyCache.put(key, rendered);
+      }
+    }
+    return rendered;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.booktools.service.BookToolsService#getStatistics()
+   */
+  @Override
+  public Map<String, Number> getStatistics() {
+    Map<String, Number> statistics = new TreeMap<>();
+    bundledStyleRenderer.getStatistics("bundledStyleRenderer.", statistics);
+    statistics.put("citationMemo.hits", citationMemo.getHits());
+    statistics.put("citationMemo.misses", citationMemo.getMisses());
+    statistics.put("citationMemo.size", citationMemo.getSize());
+    citingIndexMap.getStatistics("citingIndexMap.", statistics);
+    indexExpiryCoalescer.getStatistics("indexExpiry.", statistics);
+    indexLocks.getStatistics("indexLocks.", statistics);
+    statistics.put("indexUpdates.scheduled", scheduledIndexUpdates.size());
+    nodeMetadataCache.getStatistics("nodeMetadataCache.", statistics);
+    parsedContentCache.getStatistics("parsedContentCache.", statistics);
+    statistics.put("renderedBibliographyCache.hits", renderedBibliographyCache.getHits());
+    statistics.put("renderedBibliographyCache.misses", renderedBibliographyCache.getMisses());
+    statistics.put("renderedBibliographyCache.size", renderedBibliographyCache.getSize());
+    statistics.put("cslProcessorCache.hits", cslProcessorCache.getHits());
+    statistics.put("cslProcessorCache.misses", cslProcessorCache.getMisses());
+    statistics.put("cslProcessorCache.size", cslProcessorCache.getSize());
+    cslEnginePool.getStatistics("cslEnginePool.", statistics);
+    return statistics;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * hasPendingIndexExpiry(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public boolean hasPendingIndexExpiry(DocumentReference indexReference) {
+    return indexExpiryCoalescer.hasPendingPages(indexReference);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.xwiki.component.phase.Initializable#initialize()
+   */
+  @Override
+  public void initialize() throws InitializationException {
+    cslEnginePool = new CSLEnginePool(
+        configurationSource.getProperty(CITEPROC_POOL_SIZE_PROPERTY, CSLEnginePool.DEFAULT_SIZE),
+        configurationSource.getProperty(CITEPROC_POOL_TIMEOUT_PROPERTY, CSLEnginePool.DEFAULT_TIMEOUT));
+    cslProcessorCache = new CSLProcessorCache(cslEnginePool);
+    indexExpiryCoalescer = new IndexExpiryCoalescer(
+        configurationSource.getProperty(INDEX_EXPIRY_QUIET_PERIOD_PROPERTY, IndexExpiryCoalescer.DEFAULT_QUIET_PERIOD),
+        configurationSource.getProperty(INDEX_EXPIRY_BATCH_SIZE_PROPERTY, IndexExpiryCoalescer.DEFAULT_BATCH_SIZE),
+        this::scheduleIndexUpdate);
+    indexLocks = new IndexLocks(configurationSource.getProperty(INDEX_LOCK_STRIPES_PROPERTY, IndexLocks.DEFAULT_STRIPES),
+        configurationSource.getProperty(INDEX_LOCK_TIMEOUT_PROPERTY, IndexLocks.DEFAULT_TIMEOUT),
+        configurationSource.getProperty(INDEX_LOCK_STALE_ON_TIMEOUT_PROPERTY, Boolean.TRUE));
+    nodeMetadataCache = new NodeMetadataCache(
+        configurationSource.getProperty(NODE_METADATA_CACHE_SIZE_PROPERTY, NodeMetadataCache.DEFAULT_MAX_SIZE));
+    warmUpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "booktools-citeproc-warm-up");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    String entryStyle = null;
+    String mainStyle = null;
+    try {
+      entryStyle = StyleRegistry.getDefaultStyle(Configuration.FIELD_BIBLIOGRAPHY_ENTRY_STYLE);
+      mainStyle = StyleRegistry.getDefaultStyle(Configuration.FIELD_BIBLIOGRAPHY_MAIN_STYLE);
+    } catch (IOException ex) {
+      logger.warn("Can not load the bundled styles", ex);
+    }
+    bundledStyleRenderer = new BundledStyleRenderer(entryStyle, mainStyle, entryStyle != null && mainStyle != null
+        && configurationSource.getProperty(CITEPROC_BUNDLED_RENDERER_PROPERTY, Boolean.TRUE));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * invalidateConfigurationCaches(org.xwiki.model.reference.WikiReference)
+   */
+  @Override
+  public void invalidateConfigurationCaches(WikiReference wikiReference) {
+    styleRegistry.invalidate(wikiReference);
+    citationMemo.invalidate(wikiReference);
+    cslProcessorCache.invalidate(wikiReference);
+    renderedBibliographyCache.invalidate(wikiReference);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * invalidateIndexCaches(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public void invalidateIndexCaches(DocumentReference indexReference) {
+    citationMemo.invalidate(indexReference);
+    cslProcessorCache.invalidate(indexReference);
+    renderedBibliographyCache.invalidate(indexReference);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * invalidateNodeCaches(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public void invalidateNodeCaches(DocumentReference documentReference) {
+    nodeMetadataCache.invalidate(documentReference);
+    // the walker of the request is not created only to be invalidated
+    DocumentWalker walker = (DocumentWalker) getContext().get(DOCUMENT_WALKER);
+    if (walker != null) {
+      walker.invalidate(documentReference);
+    }
+  }
+
+  /**
+   * Register all the indexes of all the wikis in the citing index map with the
+   * keys stored by their last update, so that the change of an entry expires
+   * the indexes which have not been read or updated since the service started.
+   * The indexes already registered keep their keys. The loading is tried again
+   * on the next use of the map if a query fails.
+   */
+  private void loadCitingIndexes() {
+    synchronized (citingIndexMap) {
+      if (citingIndexesLoaded) {
+        return;
+      }
+      try {
+        for (String wikiId : wikiDescriptorManager.getAllIds()) {
+          WikiReference wikiReference = new WikiReference(wikiId);
+          List<Object[]> results = queryManager
+              .createQuery(String.format("select doc.fullName, idx.keys from Document doc, doc.object(%s) as idx",
+                  Index.CLASS_REFERENCE_AS_STRING), Query.XWQL)
+              .setWiki(wikiId).execute();
+          if (results == null) {
+            continue;
+          }
+          for (Object[] result : results) {
+            citingIndexMap.registerIfAbsent(documentReferenceResolver.resolve((String) result[0], wikiReference),
+                Utils.deserializeKeys(this, (String) result[1]));
+          }
+        }
+        citingIndexesLoaded = true;
+      } catch (WikiManagerException | QueryException ex) {
+        logger.warn("Can not load the keys cited by the indexes", ex);
+      }
+    }
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -712,6 +1189,236 @@ public class DefaultBookToolsService implements BookToolsService {
     return biblatexImporter.parseBibTeX(this, bibtex);
   }
 
+  /**
+   * Cite every entry once in order to produce a proper numbering including all
+   * keys and set the output options expected by the macros. The numbering only
+   * depends on the order in which the entries are first cited, so they are
+   * cited together in a single citation, unless the style tests the position
+   * of the citations which then depends on each previous citation.
+   *
+   * @param csl
+   *          the CSL object with the entries registered
+   * @param style
+   *          the style
+   * @param itemDatas
+   *          the entries
+   */
+  private void prepareNumbering(CSL csl, String style, List<CSLItemData> itemDatas) {
+    if (citationMemo.isShareable(style)) {
+      if (!itemDatas.isEmpty()) {
+        CSLCitationItem[] citationItems = new CSLCitationItem[itemDatas.size()];
+        for (int i = 0; i < citationItems.length; ++i) {
+          citationItems[i] = new CSLCitationItem(itemDatas.get(i).getId());
+        }
+        csl.makeCitation(new CSLCitation(citationItems));
+      }
+    } else {
+      for (CSLItemData itemData : itemDatas) {
+        csl.makeCitation(new CSLCitation(new CSLCitationItem(itemData.getId())));
+      }
+    }
+
+    csl.setConvertLinks(true);
+    csl.setOutputFormat("text");
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#releaseCSL(
+   * de.undercouch.citeproc.CSL)
+   */
+  @Override
+  public void releaseCSL(CSL csl) {
+    if (csl != null) {
+      cslProcessorCache.release(csl);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * renderBibliography(java.lang.String, java.lang.String, java.util.List)
+   */
+  @Override
+  public RenderedBibliography renderBibliography(String style, String locale, List<CSLItemData> itemDatas) {
+    RenderedBibliography rendered = renderWithBundledStyle(style, locale, itemDatas);
+    if (rendered != null) {
+      return rendered;
+    }
+    return renderBibliographyWithCiteproc(style, locale, itemDatas);
+  }
+
+  /**
+   * Render the bibliography and the citation label of each entry with
+   * citeproc.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale
+   * @param itemDatas
+   *          the entries in citation order
+   * @return the rendered bibliography or null if citeproc failed
+   */
+  private RenderedBibliography renderBibliographyWithCiteproc(String style, String locale,
+      List<CSLItemData> itemDatas) {
+    CSL csl = getCSL(style, locale, itemDatas);
+    if (csl == null) {
+      return null;
+    }
+    try {
+      prepareNumbering(csl, style, itemDatas);
+
+      RenderedBibliography rendered = new RenderedBibliography(style.hashCode(), csl.makeBibliography());
+      for (CSLItemData itemData : itemDatas) {
+        // the new citation cluster is the last one
+        Citation last = null;
+        for (Citation citation : csl.makeCitation(itemData.getId())) {
+          if (last == null || citation.getIndex() > last.getIndex()) {
+            last = citation;
+          }
+        }
+        if (last != null) {
+          rendered.getCitations().put(itemData.getId(), last.getText());
+        }
+      }
+      return rendered;
+    } catch (RuntimeException ex) {
+      addError(Error.CSL, ex.getMessage());
+      logger.warn("Can not render bibliography", ex);
+      return null;
+    } finally {
+      releaseCSL(csl);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * renderCitation(java.lang.String, java.util.Map, java.util.List)
+   */
+  @Override
+  public String renderCitation(String style, Map<String, Integer> numbering, List<String> keys) {
+    return bundledStyleRenderer.renderCitation(style, numbering, keys);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * renderEntries(java.lang.String, java.lang.String, java.util.List)
+   */
+  @Override
+  public Map<String, String> renderEntries(String style, String locale, List<CSLItemData> itemDatas) {
+    Map<String, String> entries = new HashMap<>();
+    RenderedBibliography rendered = renderWithBundledStyle(style, locale, itemDatas);
+    if (rendered != null) {
+      for (int i = 0; i < rendered.getEntryIds().size(); ++i) {
+        entries.put(rendered.getEntryIds().get(i), rendered.getEntries().get(i));
+      }
+      return entries;
+    }
+
+    CSL csl = getCSL(style, locale, itemDatas);
+    if (csl != null) {
+      try {
+        csl.setOutputFormat("text");
+        Bibliography bibliography = csl.makeBibliography();
+        for (int i = 0; i < bibliography.getEntryIds().length; ++i) {
+          entries.put(bibliography.getEntryIds()[i], bibliography.getEntries()[i]);
+        }
+      } finally {
+        releaseCSL(csl);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Render the entries with the Java renderer of the bundled styles. The first
+   * renderings are compared with the output of citeproc and the renderer is
+   * disabled if they differ.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale
+   * @param itemDatas
+   *          the entries in citation order
+   * @return the rendered bibliography or null if the style or the entries are
+   *         not handled by the renderer
+   */
+  private RenderedBibliography renderWithBundledStyle(String style, String locale, List<CSLItemData> itemDatas) {
+    RenderedBibliography rendered = bundledStyleRenderer.render(style, locale, itemDatas);
+    if (rendered != null && bundledStyleRenderer.shouldCheck()) {
+      RenderedBibliography expected = renderBibliographyWithCiteproc(style, locale, itemDatas);
+      if (expected != null && !(expected.getEntryIds().equals(rendered.getEntryIds())
+          && expected.getEntries().equals(rendered.getEntries())
+          && expected.getCitations().equals(rendered.getCitations()))) {
+        logger.warn("The bundled style renderer is disabled since its output differs from citeproc: {} instead of {}",
+            rendered.getEntries(), expected.getEntries());
+        bundledStyleRenderer.disable();
+        return expected;
+      }
+    }
+    return rendered;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * restoreIndexExpiry(org.xwiki.model.reference.DocumentReference,
+   * org.projectsforge.xwiki.booktools.job.IndexExpiryCoalescer.Changes)
+   */
+  @Override
+  public void restoreIndexExpiry(DocumentReference indexReference, IndexExpiryCoalescer.Changes changes) {
+    indexExpiryCoalescer.restore(indexReference, changes);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * scheduleIndexExpiry(org.xwiki.model.reference.DocumentReference,
+   * org.xwiki.model.reference.DocumentReference, boolean)
+   */
+  @Override
+  public void scheduleIndexExpiry(DocumentReference indexReference, DocumentReference pageReference,
+      boolean deleted) {
+    indexExpiryCoalescer.expire(indexReference, pageReference, deleted);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.projectsforge.xwiki.booktools.service.BookToolsService#
+   * scheduleIndexUpdate(org.xwiki.model.reference.DocumentReference)
+   */
+  @Override
+  public void scheduleIndexUpdate(DocumentReference indexReference) {
+    if (!scheduledIndexUpdates.add(indexReference)) {
+      // the waiting job will see the changes
+      return;
+    }
+
+    IndexUpdateJobRequest request = new IndexUpdateJobRequest();
+    request.setId(Arrays.asList(IndexUpdateJob.JOB_TYPE, UUID.randomUUID().toString()));
+    request.setInteractive(false);
+    request.setVerbose(false);
+    request.setIndexReference(indexReference);
+
+    try {
+      jobExecutor.execute(IndexUpdateJob.JOB_TYPE, request);
+    } catch (Exception ex) {
+      scheduledIndexUpdates.remove(indexReference);
+      logger.warn("Can not schedule the update of index " + indexReference, ex);
+    }
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -763,4 +1470,31 @@ public class DefaultBookToolsService implements BookToolsService {
     return null;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.projectsforge.xwiki.booktools.service.BookToolsService#warmUpCSLEngines(
+   * )
+   */
+  @Override
+  public void warmUpCSLEngines() {
+    XWikiContext context = getContext();
+    String style = getBibliographyStyle(context.getWikiReference(), Configuration.FIELD_BIBLIOGRAPHY_MAIN_STYLE);
+    String entryStyle = getBibliographyStyle(context.getWikiReference(), Configuration.FIELD_BIBLIOGRAPHY_ENTRY_STYLE);
+    Locale locale = context.getLocale() != null ? context.getLocale() : context.getWiki().getDefaultLocale(context);
+    String localeAsString = locale != null ? locale.toString() : null;
+    int count = Math.max(1, cslEnginePool.getSize() - 1);
+
+    // starting an engine takes seconds, do not delay the initialization
+    warmUpExecutor.execute(() -> {
+      if (style != null) {
+        cslEnginePool.warmUp(style, localeAsString, count);
+      }
+      if (entryStyle != null) {
+        cslEnginePool.warmUp(entryStyle, null, 1);
+      }
+    });
+  }
+
 }
@@ -0,0 +1,454 @@
+package org.projectsforge.xwiki.booktools.csl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.projectsforge.xwiki.booktools.mapping.Configuration;
+
+import de.undercouch.citeproc.CSL;
+import de.undercouch.citeproc.csl.CSLCitation;
+import de.undercouch.citeproc.csl.CSLCitationItem;
+import de.undercouch.citeproc.csl.CSLDateBuilder;
+import de.undercouch.citeproc.csl.CSLItemData;
+import de.undercouch.citeproc.csl.CSLItemDataBuilder;
+import de.undercouch.citeproc.csl.CSLName;
+import de.undercouch.citeproc.csl.CSLNameBuilder;
+import de.undercouch.citeproc.csl.CSLType;
+import de.undercouch.citeproc.output.Citation;
+
+/**
+ * Compare the output of the bundled style renderer with the output of citeproc
+ * for the bundled styles, on entries covering every type and every value
+ * accepted by the renderer. The citeproc output is produced as in
+ * DefaultBookToolsService.
+ */
+public class BundledStyleRendererTest {
+
+  /** The locale. */
+  private static final String LOCALE = "en-US";
+
+  /** The bundled entry style. */
+  private static String entryStyle;
+
+  /** The bundled main style. */
+  private static String mainStyle;
+
+  /**
+   * Build an entry with its required values.
+   *
+   * @param id
+   *          the id
+   * @param type
+   *          the type
+   * @param title
+   *          the title
+   * @return the item data builder
+   */
+  private static CSLItemDataBuilder entry(String id, CSLType type, String title) {
+    return new CSLItemDataBuilder().id(id).type(type).title(title);
+  }
+
+  /**
+   * Load the bundled styles.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @BeforeClass
+  public static void loadStyles() throws IOException {
+    entryStyle = StyleRegistry.getDefaultStyle(Configuration.FIELD_BIBLIOGRAPHY_ENTRY_STYLE);
+    mainStyle = StyleRegistry.getDefaultStyle(Configuration.FIELD_BIBLIOGRAPHY_MAIN_STYLE);
+    assertNotNull(entryStyle);
+    assertNotNull(mainStyle);
+  }
+
+  /**
+   * Build a personal name.
+   *
+   * @param given
+   *          the given name (null if none)
+   * @param family
+   *          the family name
+   * @return the name
+   */
+  private static CSLName name(String given, String family) {
+    return new CSLNameBuilder().given(given).family(family).build();
+  }
+
+  /**
+   * Check that both bundled styles render the entries as citeproc does.
+   *
+   * @param locale
+   *          the locale
+   * @param itemDatas
+   *          the entries in citation order
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void assertSameRendering(String locale, List<CSLItemData> itemDatas) throws IOException {
+    for (String style : Arrays.asList(entryStyle, mainStyle)) {
+      BundledStyleRenderer renderer = new BundledStyleRenderer(entryStyle, mainStyle, true);
+      RenderedBibliography rendered = renderer.render(style, locale, itemDatas);
+      assertNotNull("The entries must be supported by the renderer", rendered);
+
+      RenderedBibliography expected = renderWithCiteproc(style, locale, itemDatas);
+      assertEquals(expected.getEntryIds(), rendered.getEntryIds());
+      assertEquals(expected.getEntries(), rendered.getEntries());
+      assertEquals(expected.getCitations(), rendered.getCitations());
+      assertEquals(expected.getBibStart(), rendered.getBibStart());
+      assertEquals(expected.getBibEnd(), rendered.getBibEnd());
+    }
+  }
+
+  /**
+   * Check that both bundled styles render the entries as citeproc does in the
+   * en-US locale.
+   *
+   * @param itemDatas
+   *          the entries in citation order
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private void assertSameRendering(List<CSLItemData> itemDatas) throws IOException {
+    assertSameRendering(LOCALE, itemDatas);
+  }
+
+  /**
+   * The fixtures of the book types.
+   *
+   * @return the entries
+   */
+  private List<CSLItemData> bookTypes() {
+    return Arrays.asList(
+        entry("book", CSLType.BOOK, "The Art of Computer Programming").author(name("Donald Ervin", "Knuth"))
+            .edition("3").publisher("Addison-Wesley").publisherPlace("Reading, MA").ISBN("978-0-201-89683-1")
+            .issued(1997).build(),
+        entry("book-edition", CSLType.BOOK, "Compilers").author(name("Alfred V.", "Aho"), name("Monica S.", "Lam"))
+            .edition("12").volume("2").issue("4").number("17").ISSN("1234-5678").DOI("10.1000/182").issued(2006, 9)
+            .build(),
+        entry("book-first", CSLType.BOOK, "A First Book").editor(name("Jean-Paul", "Sartre")).edition("1")
+            .collectionTitle("Unused Collection").build(),
+        entry("manuscript", CSLType.MANUSCRIPT, "Notes on Structured Programming").author(name("E. W.", "Dijkstra"))
+            .genre("Unpublished manuscript").issued(1970, 4, 7).build(),
+        entry("report", CSLType.REPORT, "Report 42 on Things").author(name("Grace", "Hopper"))
+            .editor(name("Ada", "Lovelace")).genre("Technical report").number("TR-42").publisher("MIT")
+            .publisherPlace("Cambridge").edition("22").issued(1985, 12, 21).build(),
+        entry("thesis", CSLType.THESIS, "On Computable Numbers").author(name("Alan Mathison", "Turing"))
+            .genre("PhD thesis").publisher("Princeton University").edition("2").issued(1938).build());
+  }
+
+  /**
+   * The fixtures of the chapter type.
+   *
+   * @return the entries
+   */
+  private List<CSLItemData> chapters() {
+    return Arrays.asList(
+        entry("chapter", CSLType.CHAPTER, "Sorting and Searching").author(name("Donald", "Knuth")).chapterNumber("5")
+            .containerTitle("The Art of Computer Programming").medium("Print").volume("3").issue("1").number("2")
+            .publisher("Addison-Wesley").publisherPlace("Boston").ISBN("0-201-89685-0").DOI("10.5555/280635")
+            .issued(1998, 5).build(),
+        entry("chapter-collection", CSLType.CHAPTER, "Parsing").editor(name("Ann", "Smith-Jones"), name("Bob", "Brown"))
+            .chapterNumber("9999").collectionTitle("Lecture Notes in Computer Science").ISSN("0302-9743")
+            .page("12-30").issued(2001, 5, 7).build(),
+        entry("chapter-plain", CSLType.CHAPTER, "Introduction").build());
+  }
+
+  /**
+   * The fixtures of the types rendered with the default layout.
+   *
+   * @return the entries
+   */
+  private List<CSLItemData> otherTypes() {
+    return Arrays.asList(
+        entry("article", CSLType.ARTICLE_JOURNAL, "A Relational Model of Data for Large Shared Data Banks")
+            .author(name("E. F.", "Codd")).containerTitle("Communications of the ACM").volume("13").issue("6")
+            .page("377-387").ISSN("0001-0782").DOI("10.1145/362384.362685").issued(1970, 6).build(),
+        entry("paper", CSLType.PAPER_CONFERENCE, "Go To Statement Considered Harmful")
+            .author(name("Edsger", "Dijkstra"), name("Niklaus", "Wirth"), name("Tony", "Hoare"))
+            .collectionTitle("Proceedings of the Conference").medium("CD-ROM").page("147").publisher("ACM")
+            .publisherPlace("New York").ISBN("978-1-4503-0000-0").issued(1968, 3, 1).build(),
+        entry("article-plain", CSLType.ARTICLE, "Don't Panic").author(name(null, "Adams")).number("3").build(),
+        entry("speech", CSLType.SPEECH, "The Humble Programmer").author(name("E. W.", "Dijkstra"))
+            .genre("Turing Award Lecture").issued(1972, 8, 14).build(),
+        entry("report-edition", CSLType.ARTICLE_MAGAZINE, "Ignored Edition").edition("3").chapterNumber("4")
+            .URL("http://example.com/ignored").accessed(2016, 1, 2).build());
+  }
+
+  /**
+   * Render the entries with citeproc as DefaultBookToolsService does.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale
+   * @param itemDatas
+   *          the entries in citation order
+   * @return the rendered bibliography
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private RenderedBibliography renderWithCiteproc(String style, String locale, List<CSLItemData> itemDatas)
+      throws IOException {
+    CSL csl = startCiteproc(style, locale, itemDatas);
+    RenderedBibliography rendered = new RenderedBibliography(style.hashCode(), csl.makeBibliography());
+    for (CSLItemData itemData : itemDatas) {
+      // the new citation cluster is the last one
+      Citation last = null;
+      for (Citation citation : csl.makeCitation(itemData.getId())) {
+        if (last == null || citation.getIndex() > last.getIndex()) {
+          last = citation;
+        }
+      }
+      rendered.getCitations().put(itemData.getId(), last.getText());
+    }
+    return rendered;
+  }
+
+  /**
+   * Load the entries in citeproc, register them and cite them together in
+   * citation order as DefaultBookToolsService does.
+   *
+   * @param style
+   *          the style
+   * @param locale
+   *          the locale
+   * @param itemDatas
+   *          the entries in citation order
+   * @return the CSL processor
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  private CSL startCiteproc(String style, String locale, List<CSLItemData> itemDatas) throws IOException {
+    CSLEngine engine = new CSLEngine(style, locale);
+    engine.load(itemDatas);
+    CSL csl = engine.getCSL();
+    List<String> keys = new ArrayList<>();
+    itemDatas.forEach(e -> keys.add(e.getId()));
+    csl.registerCitationItems(keys.toArray(new String[0]), false);
+
+    CSLCitationItem[] citationItems = new CSLCitationItem[itemDatas.size()];
+    for (int i = 0; i < citationItems.length; ++i) {
+      citationItems[i] = new CSLCitationItem(itemDatas.get(i).getId());
+    }
+    csl.makeCitation(new CSLCitation(citationItems));
+    csl.setConvertLinks(true);
+    csl.setOutputFormat("text");
+    return csl;
+  }
+
+  /**
+   * Test all the fixtures in one bibliography, which checks the sort order.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testAllTypes() throws IOException {
+    List<CSLItemData> itemDatas = new ArrayList<>();
+    itemDatas.addAll(otherTypes());
+    itemDatas.addAll(webpages());
+    itemDatas.addAll(chapters());
+    itemDatas.addAll(bookTypes());
+    assertSameRendering(itemDatas);
+  }
+
+  /**
+   * Test the book types.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testBookTypes() throws IOException {
+    assertSameRendering(bookTypes());
+  }
+
+  /**
+   * Test the chapter type.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testChapters() throws IOException {
+    assertSameRendering(chapters());
+  }
+
+  /**
+   * Test the citations of the main style made of several entries.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testCitations() throws IOException {
+    List<CSLItemData> itemDatas = new ArrayList<>(bookTypes());
+    BundledStyleRenderer renderer = new BundledStyleRenderer(entryStyle, mainStyle, true);
+    RenderedBibliography rendered = renderer.render(mainStyle, LOCALE, itemDatas);
+    Map<String, Integer> numbering = new HashMap<>();
+    for (int i = 0; i < rendered.getEntryIds().size(); ++i) {
+      numbering.put(rendered.getEntryIds().get(i), i + 1);
+    }
+
+    CSL csl = startCiteproc(mainStyle, LOCALE, itemDatas);
+    List<String> keys = Arrays.asList("thesis", "book", "report");
+    CSLCitationItem[] citationItems = new CSLCitationItem[keys.size()];
+    for (int i = 0; i < citationItems.length; ++i) {
+      citationItems[i] = new CSLCitationItem(keys.get(i));
+    }
+    Citation last = null;
+    for (Citation citation : csl.makeCitation(new CSLCitation(citationItems))) {
+      if (last == null || citation.getIndex() > last.getIndex()) {
+        last = citation;
+      }
+    }
+    assertEquals(last.getText(), renderer.renderCitation(mainStyle, numbering, keys));
+    assertNull(renderer.renderCitation(entryStyle, numbering, keys));
+    assertNull(renderer.renderCitation(mainStyle, numbering, Collections.singletonList("unknown")));
+  }
+
+  /**
+   * Test the dates with a year, a month or a day.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testDates() throws IOException {
+    assertSameRendering(Arrays.asList(entry("year", CSLType.BOOK, "Year").issued(2001).build(),
+        entry("month", CSLType.BOOK, "Month").issued(2001, 11).build(),
+        entry("day", CSLType.BOOK, "Day").issued(2001, 5, 7).build(),
+        entry("two-digit-day", CSLType.BOOK, "Two Digit Day").issued(2001, 5, 17).build(),
+        entry("date-parts", CSLType.ARTICLE, "Date Parts")
+            .issued(new CSLDateBuilder().dateParts(new int[] { 1999, 2, 28 }).build()).build()));
+  }
+
+  /**
+   * Test the forms of the en-US locale of citeproc : the day of the text dates
+   * has leading zeros and there is no term for the chapter-number label.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLocaleForms() throws IOException {
+    List<CSLItemData> itemDatas = Collections
+        .singletonList(entry("chapter", CSLType.CHAPTER, "Parsing").chapterNumber("5").issued(2001, 5, 7).build());
+    String expected = "\n[[Parsing>>BIBLIOGRAPHY_ENTRY_TARGET_MARK]], 5, May 07, 2001.\n";
+    assertEquals(expected, renderWithCiteproc(entryStyle, LOCALE, itemDatas).getEntries().get(0));
+    assertEquals(expected, new BundledStyleRenderer(entryStyle, mainStyle, true).render(entryStyle, LOCALE, itemDatas)
+        .getEntries().get(0));
+  }
+
+  /**
+   * Test the default and the short en locales.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testLocales() throws IOException {
+    assertSameRendering(null, chapters());
+    assertSameRendering("en", otherTypes());
+  }
+
+  /**
+   * Test the names and the editors substituted to the authors.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testNames() throws IOException {
+    assertSameRendering(Arrays.asList(entry("one", CSLType.BOOK, "One Author").author(name("John", "Smith")).build(),
+        entry("initials", CSLType.BOOK, "Initials").author(name("J. R. R.", "Tolkien")).build(),
+        entry("compact-initials", CSLType.BOOK, "Compact Initials").author(name("J.R.", "Hartley")).build(),
+        entry("hyphen", CSLType.BOOK, "Hyphenated").author(name("Jean-Luc", "Picard-Dupont")).build(),
+        entry("family", CSLType.BOOK, "Family Only").author(name(null, "Plato")).build(),
+        entry("two", CSLType.BOOK, "Two Authors").author(name("Ann", "Smith"), name("Bob", "Jones")).build(),
+        entry("four", CSLType.BOOK, "Four Authors")
+            .author(name("Ann", "Smith"), name("Bob", "Jones"), name("Carl", "White"), name("Dan", "Black")).build(),
+        entry("editor", CSLType.BOOK, "One Editor").editor(name("Eve", "Green")).build(),
+        entry("editors", CSLType.BOOK, "Two Editors").editor(name("Eve", "Green"), name("Fred", "Blue")).build(),
+        entry("anonymous", CSLType.BOOK, "Anonymous").build()));
+  }
+
+  /**
+   * Test that the values transformed by citeproc are not supported.
+   */
+  @Test
+  public void testUnsupported() {
+    BundledStyleRenderer renderer = new BundledStyleRenderer(entryStyle, mainStyle, true);
+    List<CSLItemData> itemDatas = Arrays.asList(
+        entry("particle", CSLType.BOOK, "Particle")
+            .author(new CSLNameBuilder().given("Ludwig").nonDroppingParticle("van").family("Beethoven").build()).build(),
+        entry("quotes", CSLType.BOOK, "The \"Quoted\" Title").build(),
+        entry("range", CSLType.BOOK, "Range")
+            .issued(new CSLDateBuilder().dateParts(new int[] { 2001 }, new int[] { 2002 }).build()).build(),
+        entry("edition", CSLType.BOOK, "Edition").edition("second").build(),
+        entry("markup", CSLType.BOOK, "<i>Markup</i>").build(),
+        entry("final-period", CSLType.BOOK, "Final Period.").build(),
+        entry("parenthesis", CSLType.BOOK, "Java (2nd ed.)").build());
+    for (CSLItemData itemData : itemDatas) {
+      assertNull(itemData.getId(), renderer.render(mainStyle, LOCALE, Collections.singletonList(itemData)));
+    }
+    assertNull(renderer.render(mainStyle, "fr-FR", bookTypes()));
+    assertNull(renderer.render("<style/>", LOCALE, bookTypes()));
+  }
+
+  /**
+   * Test the titles with punctuation.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testTitles() throws IOException {
+    assertSameRendering(Arrays.asList(entry("apostrophe", CSLType.BOOK, "Don't Stop Believing").build(),
+        entry("period", CSLType.BOOK, "Data Structures, Vol. 2 and U.S. Programs").build(),
+        entry("colon", CSLType.BOOK, "Java: The Good Parts (2nd ed.) Explained").build(),
+        entry("symbols", CSLType.BOOK, "C++ & C# = 100% Fun @ Home/Work; 2016").build(),
+        entry("lowercase", CSLType.BOOK, "a lowercase title").build(),
+        entry("article", CSLType.BOOK, "the bee").build(), entry("capital-article", CSLType.BOOK, "The Zebra").build(),
+        entry("an", CSLType.BOOK, "an owl").build(), entry("capital-an", CSLType.BOOK, "An Owl").build(),
+        entry("theory", CSLType.BOOK, "Theory").build()));
+  }
+
+  /**
+   * Test the webpage type.
+   *
+   * @throws IOException
+   *           Signals that an I/O exception has occurred.
+   */
+  @Test
+  public void testWebpages() throws IOException {
+    assertSameRendering(webpages());
+  }
+
+  /**
+   * The fixtures of the webpage type.
+   *
+   * @return the entries
+   */
+  private List<CSLItemData> webpages() {
+    return Arrays.asList(
+        entry("webpage", CSLType.WEBPAGE, "XWiki").author(name("Ludovic", "Dubost"))
+            .URL("https://www.xwiki.org/xwiki/bin/view/Main/?a=1&b=2#top").accessed(2016, 10, 3).issued(2015)
+            .containerTitle("Ignored Container").publisher("Ignored Publisher").build(),
+        entry("webpage-plain", CSLType.WEBPAGE, "Plain Page").URL("http://example.com/").build(),
+        entry("webpage-accessed", CSLType.WEBPAGE, "Accessed Page").accessed(2016, 2).build());
+  }
+
+}
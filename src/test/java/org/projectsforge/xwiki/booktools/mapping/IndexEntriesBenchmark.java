@@ -0,0 +1,136 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.projectsforge.xwiki.booktools.Utils;
+
+import de.undercouch.citeproc.csl.CSLItemData;
+import de.undercouch.citeproc.csl.CSLItemDataBuilder;
+import de.undercouch.citeproc.csl.CSLNameBuilder;
+import de.undercouch.citeproc.csl.CSLType;
+import de.undercouch.citeproc.helper.json.StringJsonBuilderFactory;
+
+/**
+ * Compare the container of {@link IndexEntries} with the former format (the
+ * JSON of the entries one after the other) : size, decoding of all the entries,
+ * reading of one entry and removal of one entry. It is not run by the tests,
+ * run it with the test classpath, for instance :
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.projectsforge.xwiki.booktools.mapping.IndexEntriesBenchmark \
+ *   -Dexec.args="100 1000"
+ * </pre>
+ */
+public final class IndexEntriesBenchmark {
+
+  /** The number of measured iterations of each operation. */
+  private static final int ITERATIONS = 200;
+
+  /** The number of warm-up rounds. */
+  private static final int WARMUP_ROUNDS = 2;
+
+  /**
+   * Instantiates a new index entries benchmark.
+   */
+  private IndexEntriesBenchmark() {
+  }
+
+  /**
+   * Build entries.
+   *
+   * @param count
+   *          the number of entries
+   * @return the entries
+   */
+  static List<CSLItemData> buildEntries(int count) {
+    List<CSLItemData> entries = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      entries.add(new CSLItemDataBuilder().id("key" + i).type(CSLType.ARTICLE_JOURNAL)
+          .title("A fairly long title about topic number " + i).containerTitle("Journal of Things")
+          .volume(Integer.toString(i)).page("1-10")
+          .author(new CSLNameBuilder().given("John").family("Doe" + i).build(),
+              new CSLNameBuilder().given("Jane").family("Roe").build())
+          .issued(2000 + i % 20, 1 + i % 12).DOI("10.1000/" + i).build());
+    }
+    return entries;
+  }
+
+  /**
+   * Serialize entries in the former format.
+   *
+   * @param entries
+   *          the entries
+   * @return the stored value
+   */
+  static String serializeLegacy(List<CSLItemData> entries) {
+    StringJsonBuilderFactory factory = new StringJsonBuilderFactory();
+    StringBuilder builder = new StringBuilder();
+    for (CSLItemData entry : entries) {
+      builder.append(entry.toJson(factory.createJsonBuilder()));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          the numbers of entries (100 and 1000 by default)
+   */
+  public static void main(String[] args) {
+    String[] counts = args.length == 0 ? new String[] { "100", "1000" } : args;
+    for (String count : counts) {
+      run(Integer.parseInt(count));
+    }
+  }
+
+  /**
+   * Measure an operation.
+   *
+   * @param operation
+   *          the operation
+   * @return the mean time in milliseconds
+   */
+  private static double measure(Runnable operation) {
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+      operation.run();
+    }
+    return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+  }
+
+  /**
+   * Run the benchmark for a number of entries.
+   *
+   * @param count
+   *          the number of entries
+   */
+  private static void run(int count) {
+    List<CSLItemData> entries = buildEntries(count);
+    String legacy = serializeLegacy(entries);
+    String container = IndexEntries.serialize(entries);
+    String key = "key" + count / 2;
+    if (!serializeLegacy(new IndexEntries(container).getAll()).equals(legacy)) {
+      throw new IllegalStateException("The container does not give back the entries");
+    }
+
+    for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+      double legacyAll = measure(() -> Utils.deserializeCSLItemDatas(legacy));
+      double containerAll = measure(() -> new IndexEntries(container).getAll());
+      double legacyOne = measure(() -> new IndexEntries(legacy).get(key));
+      double containerOne = measure(() -> new IndexEntries(container).get(key));
+      double legacyDrop = measure(() -> new IndexEntries(legacy).serializeWithout(Collections.singleton(key)));
+      double containerDrop = measure(() -> new IndexEntries(container).serializeWithout(Collections.singleton(key)));
+      if (round == WARMUP_ROUNDS) {
+        System.out.printf("%d entries, size former %d container %d%n", count, legacy.length(), container.length());
+        System.out.printf("  all entries  former %8.3f ms  container %8.3f ms%n", legacyAll, containerAll);
+        System.out.printf("  one entry    former %8.3f ms  container %8.3f ms%n", legacyOne, containerOne);
+        System.out.printf("  drop entry   former %8.3f ms  container %8.3f ms%n", legacyDrop, containerDrop);
+      }
+    }
+  }
+
+}
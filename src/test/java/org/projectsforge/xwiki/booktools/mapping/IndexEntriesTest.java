@@ -0,0 +1,95 @@
+package org.projectsforge.xwiki.booktools.mapping;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.undercouch.citeproc.csl.CSLItemData;
+
+/**
+ * Test the storage of the entries of an index, in the container and in the
+ * former format.
+ */
+public class IndexEntriesTest {
+
+  /**
+   * Gets the ids of entries.
+   *
+   * @param entries
+   *          the entries
+   * @return the ids
+   */
+  private static List<String> ids(List<CSLItemData> entries) {
+    return Arrays.asList(entries.stream().map(CSLItemData::getId).toArray(String[]::new));
+  }
+
+  /**
+   * Test that the container gives back the entries.
+   */
+  @Test
+  public void testContainer() {
+    List<CSLItemData> entries = IndexEntriesBenchmark.buildEntries(10);
+    IndexEntries stored = new IndexEntries(IndexEntries.serialize(entries));
+    assertEquals(IndexEntriesBenchmark.serializeLegacy(entries),
+        IndexEntriesBenchmark.serializeLegacy(stored.getAll()));
+    assertEquals("key7", stored.get("key7").getId());
+    assertNull(stored.get("unknown"));
+    assertEquals(Arrays.asList("key3", "key1"), ids(stored.get(Arrays.asList("key3", "unknown", "key1"))));
+  }
+
+  /**
+   * Test that a corrupted container is ignored.
+   */
+  @Test
+  public void testCorrupted() {
+    String value = IndexEntries.serialize(IndexEntriesBenchmark.buildEntries(3));
+    IndexEntries stored = new IndexEntries(value.substring(0, value.length() - 10));
+    assertTrue(stored.getAll().isEmpty());
+  }
+
+  /**
+   * Test that no entry is stored for an empty value.
+   */
+  @Test
+  public void testEmpty() {
+    assertEquals("", IndexEntries.serialize(Collections.emptyList()));
+    assertTrue(new IndexEntries(null).getAll().isEmpty());
+    assertTrue(new IndexEntries("").getAll().isEmpty());
+  }
+
+  /**
+   * Test that the former format is read and stored again as a container.
+   */
+  @Test
+  public void testLegacy() {
+    List<CSLItemData> entries = IndexEntriesBenchmark.buildEntries(5);
+    IndexEntries stored = new IndexEntries(IndexEntriesBenchmark.serializeLegacy(entries));
+    assertEquals(ids(entries), ids(stored.getAll()));
+    assertEquals("key2", stored.get("key2").getId());
+
+    String value = stored.serializeWithout(Collections.singleton("key2"));
+    assertTrue(value.startsWith(IndexEntries.HEADER + "\n"));
+    assertEquals(Arrays.asList("key0", "key1", "key3", "key4"), ids(new IndexEntries(value).getAll()));
+  }
+
+  /**
+   * Test the removal of entries from the container.
+   */
+  @Test
+  public void testSerializeWithout() {
+    List<CSLItemData> entries = IndexEntriesBenchmark.buildEntries(5);
+    IndexEntries stored = new IndexEntries(IndexEntries.serialize(entries));
+    IndexEntries kept = new IndexEntries(stored.serializeWithout(Arrays.asList("key0", "key3")));
+    assertEquals(Arrays.asList("key1", "key2", "key4"), ids(kept.getAll()));
+    assertEquals(IndexEntriesBenchmark.serializeLegacy(Arrays.asList(entries.get(1), entries.get(2), entries.get(4))),
+        IndexEntriesBenchmark.serializeLegacy(kept.getAll()));
+    assertEquals("", stored.serializeWithout(ids(entries)));
+  }
+
+}